@@ -0,0 +1,300 @@
+package search;
+
+import guttmanlab.core.sequence.Sequence;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for building the kmer index in PerfectKmerSearch and matching reads against it
+ * Transcripts and reads are random sequences from SyntheticSequences, with the sizes, N rate and k set by the parameters
+ * Parameters can be overridden on the JMH command line, e.g. -p k=20 -p index=packed
+ * @author prussell
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PerfectKmerSearchBenchmark {
+	
+	/**
+	 * Random transcripts and reads taken from them
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Benchmark)
+	public static class Reads {
+		
+		@Param({"12", "20", "32"})
+		public int k;
+		
+		@Param({"1000"})
+		public int numTranscripts;
+		
+		@Param({"2000"})
+		public int transcriptLength;
+		
+		@Param({"100"})
+		public int readLength;
+		
+		@Param({"0", "0.02"})
+		public double nRate; // Proportion of Ns in transcripts and reads
+		
+		public List<Sequence> transcripts;
+		public List<Sequence> reads;
+		
+		@Setup(Level.Trial)
+		public void setupReads() {
+			if(readLength < k) {
+				throw new IllegalArgumentException("Read length " + readLength + " is shorter than k " + k);
+			}
+			transcripts = SyntheticSequences.transcripts(numTranscripts, transcriptLength, nRate, 1);
+			reads = SyntheticSequences.reads(transcripts, 10000, readLength, nRate, 0.2, 2);
+		}
+		
+	}
+	
+	/**
+	 * The transcripts written to a temporary fasta file to build indexes from
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Benchmark)
+	public static class Targets extends Reads {
+		
+		public File fasta;
+		
+		@Setup(Level.Trial)
+		public void setupFasta() throws IOException {
+			fasta = File.createTempFile("PerfectKmerSearchBenchmark", ".fa");
+			SyntheticSequences.writeFasta(transcripts, fasta);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			fasta.delete();
+		}
+		
+		/**
+		 * Build the search object
+		 * @param index Index type: string, packed or minimizer
+		 * @param minimizerLength Minimizer length for the minimizer index
+		 * @return Search object
+		 * @throws IOException
+		 */
+		public PerfectKmerSearch createSearch(String index, int minimizerLength) throws IOException {
+			if(index.equals("string")) {
+				return new PerfectKmerSearch(k, fasta.getAbsolutePath(), false);
+			}
+			if(index.equals("packed")) {
+				return new PerfectKmerSearch(k, fasta.getAbsolutePath(), true);
+			}
+			if(index.equals("minimizer")) {
+				return new PerfectKmerSearch(k, fasta.getAbsolutePath(), minimizerLength, 0);
+			}
+			throw new IllegalArgumentException("Index type must be string, packed or minimizer: " + index);
+		}
+		
+	}
+	
+	/**
+	 * Targets with the index type given by the parameters
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Benchmark)
+	public static class IndexedTargets extends Targets {
+		
+		@Param({"string", "packed", "minimizer"})
+		public String index; // Type of kmer index
+		
+		@Param({"12"})
+		public int minimizerLength; // Minimizer length for the minimizer index
+		
+		/**
+		 * Build the search object with the index type given by the parameters
+		 * @return Search object
+		 * @throws IOException
+		 */
+		public PerfectKmerSearch createSearch() throws IOException {
+			return createSearch(index, minimizerLength);
+		}
+		
+	}
+	
+	/**
+	 * A cursor that cycles through the reads
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class ReadCursor {
+		
+		protected List<Sequence> reads;
+		private int next = 0;
+		
+		@Setup(Level.Trial)
+		public void setupCursor(Reads reads) {
+			this.reads = reads.reads;
+		}
+		
+		/**
+		 * @return The next read, starting over at the beginning after the last read
+		 */
+		public Sequence nextRead() {
+			Sequence rtrn = reads.get(next);
+			next = (next + 1) % reads.size();
+			return rtrn;
+		}
+		
+	}
+	
+	/**
+	 * A search object with the index type given by the parameters, built once per trial
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class Search {
+		
+		public PerfectKmerSearch search;
+		
+		@Setup(Level.Trial)
+		public void setup(IndexedTargets targets) throws IOException {
+			search = targets.createSearch();
+		}
+		
+	}
+	
+	/**
+	 * A search object with the string index, built once per trial
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class StringSearch {
+		
+		public PerfectKmerSearch search;
+		
+		@Setup(Level.Trial)
+		public void setup(Targets targets) throws IOException {
+			search = targets.createSearch("string", 0);
+		}
+		
+	}
+	
+	/**
+	 * The first match of each read to each target, computed once per trial, and a cursor that cycles through them
+	 * @author prussell
+	 *
+	 */
+	@State(Scope.Thread)
+	public static class Matches {
+		
+		public PerfectKmerSearch search;
+		private List<Collection<PerfectKmerSearch.QueryTargetMatch>> matches;
+		private int next = 0;
+		
+		@Setup(Level.Trial)
+		public void setup(StringSearch search, Reads reads) {
+			this.search = search.search;
+			matches = new ArrayList<Collection<PerfectKmerSearch.QueryTargetMatch>>();
+			for(Sequence read : reads.reads) {
+				matches.add(new ArrayList<PerfectKmerSearch.QueryTargetMatch>(this.search.firstKmerMatchEachTarget(read)));
+			}
+		}
+		
+		/**
+		 * @return The matches of the next read, starting over at the beginning after the last read
+		 */
+		public Collection<PerfectKmerSearch.QueryTargetMatch> nextMatches() {
+			Collection<PerfectKmerSearch.QueryTargetMatch> rtrn = matches.get(next);
+			next = (next + 1) % matches.size();
+			return rtrn;
+		}
+		
+	}
+	
+	/**
+	 * Build the index from the fasta file
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public PerfectKmerSearch buildIndex(IndexedTargets targets) throws IOException {
+		return targets.createSearch();
+	}
+	
+	/**
+	 * Break a read into kmers with Ns expanded, as the string index does
+	 */
+	@Benchmark
+	public void getKmers(ReadCursor reads, Reads params, Blackhole bh) {
+		bh.consume(PerfectKmerSearch.getKmers(reads.nextRead().getSequenceBases(), params.k, params.k));
+	}
+	
+	/**
+	 * Expand the Ns in the first kmer of a read to every possible base
+	 */
+	@Benchmark
+	public void expandNs(ReadCursor reads, Reads params, Blackhole bh) {
+		String bases = reads.nextRead().getSequenceBases();
+		bh.consume(PerfectKmerSearch.expandNs(bases.substring(0, params.k)));
+	}
+	
+	/**
+	 * Get the individual kmer matches of a read with the string index
+	 * The packed and minimizer indexes keep only the first match to each target as kmers are matched,
+	 * so they have no equivalent
+	 */
+	@Benchmark
+	public void getIndividualKmerMatches(StringSearch search, ReadCursor reads, Blackhole bh) {
+		bh.consume(search.search.getIndividualKmerMatches(reads.nextRead()));
+	}
+	
+	/**
+	 * Get the first match of a read to each target
+	 */
+	@Benchmark
+	public void firstKmerMatchEachTarget(Search search, ReadCursor reads, Blackhole bh) {
+		bh.consume(search.search.firstKmerMatchEachTarget(reads.nextRead()));
+	}
+	
+	/**
+	 * Build the SAM records for the precomputed first matches of a read
+	 */
+	@Benchmark
+	public void samRecords(Matches matches, Blackhole bh) {
+		bh.consume(matches.search.samRecords(matches.nextMatches()));
+	}
+	
+	/**
+	 * Get the first match of a read to each target and build the SAM records
+	 */
+	@Benchmark
+	public void samRecordFirstKmerMatchEachTarget(Search search, ReadCursor reads, Blackhole bh) {
+		bh.consume(search.search.samRecordFirstKmerMatchEachTarget(reads.nextRead()));
+	}
+	
+}
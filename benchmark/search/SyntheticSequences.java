@@ -0,0 +1,154 @@
+package search;
+
+import guttmanlab.core.sequence.Sequence;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random transcripts and reads for benchmarking kmer search
+ * Sequences are generated from a seed so benchmark runs are repeatable
+ * @author prussell
+ *
+ */
+public class SyntheticSequences {
+	
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final int MAX_READ_START_TRIES = 10000; // Tries to find a transcript substring with few enough Ns for a read
+	
+	/**
+	 * Get a random sequence with a fixed number of Ns at random positions
+	 * @param random Random number generator
+	 * @param length Sequence length
+	 * @param nRate Proportion of bases to replace with N
+	 * @return Random sequence
+	 */
+	public static String randomBases(Random random, int length, double nRate) {
+		char[] rtrn = new char[length];
+		for(int i = 0; i < length; i++) {
+			rtrn[i] = BASES[random.nextInt(4)];
+		}
+		addNs(random, rtrn, nRate);
+		return new String(rtrn);
+	}
+	
+	/**
+	 * Replace bases with N at random positions until a fixed proportion of the sequence is N
+	 * Ns already in the sequence count toward the proportion
+	 * @param random Random number generator
+	 * @param bases Sequence to modify
+	 * @param nRate Proportion of bases to be N
+	 */
+	private static void addNs(Random random, char[] bases, double nRate) {
+		if(nRate < 0 || nRate > 1) {
+			throw new IllegalArgumentException("N rate must be between 0 and 1: " + nRate);
+		}
+		int numNs = (int) (nRate * bases.length);
+		int added = countNs(bases);
+		while(added < numNs) {
+			int pos = random.nextInt(bases.length);
+			if(bases[pos] == 'N') continue;
+			bases[pos] = 'N';
+			added++;
+		}
+	}
+	
+	/**
+	 * @param bases Sequence
+	 * @return Number of Ns in the sequence
+	 */
+	private static int countNs(char[] bases) {
+		int rtrn = 0;
+		for(char c : bases) {
+			if(c == 'N') rtrn++;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Generate random transcripts
+	 * @param numTranscripts Number of transcripts
+	 * @param length Length of each transcript
+	 * @param nRate Proportion of bases in each transcript to replace with N
+	 * @param seed Random seed
+	 * @return Transcripts named transcript0, transcript1, ...
+	 */
+	public static List<Sequence> transcripts(int numTranscripts, int length, double nRate, long seed) {
+		Random random = new Random(seed);
+		List<Sequence> rtrn = new ArrayList<Sequence>();
+		for(int i = 0; i < numTranscripts; i++) {
+			rtrn.add(new Sequence("transcript" + i, randomBases(random, length, nRate)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Generate reads as substrings of random transcripts, with Ns added up to the N rate
+	 * A proportion of reads are random sequence so not every read matches
+	 * Every read has exactly the N rate of Ns, so all reads pass PerfectKmerSearch validation
+	 * as long as the read length is at least k
+	 * @param transcripts Transcripts to take reads from
+	 * @param numReads Number of reads
+	 * @param length Read length; must be no longer than the transcripts
+	 * @param nRate Proportion of bases in each read to replace with N; must be at most the PerfectKmerSearch default max proportion of Ns
+	 * @param unmatchedRate Proportion of reads that are random sequence instead of transcript substrings
+	 * @param seed Random seed
+	 * @return Reads named read0, read1, ...
+	 */
+	public static List<Sequence> reads(List<Sequence> transcripts, int numReads, int length, double nRate, double unmatchedRate, long seed) {
+		if(nRate > PerfectKmerSearch.DEFAULT_MAX_PCT_N) {
+			throw new IllegalArgumentException("N rate " + nRate + " is more than the max proportion of Ns in a query " + PerfectKmerSearch.DEFAULT_MAX_PCT_N);
+		}
+		int maxNs = (int) (nRate * length);
+		Random random = new Random(seed);
+		List<Sequence> rtrn = new ArrayList<Sequence>();
+		for(int i = 0; i < numReads; i++) {
+			String name = "read" + i;
+			if(random.nextDouble() < unmatchedRate) {
+				rtrn.add(new Sequence(name, randomBases(random, length, nRate)));
+				continue;
+			}
+			String transcript = transcripts.get(random.nextInt(transcripts.size())).getSequenceBases();
+			if(transcript.length() < length) {
+				throw new IllegalArgumentException("Read length " + length + " is longer than transcript length " + transcript.length());
+			}
+			// Ns in the transcript count toward the N rate, so pick a substring without too many
+			char[] bases = null;
+			for(int tries = 0; bases == null; tries++) {
+				if(tries == MAX_READ_START_TRIES) {
+					throw new IllegalArgumentException("Could not find a read with at most " + maxNs + " Ns; transcript N rate is too high");
+				}
+				int start = random.nextInt(transcript.length() - length + 1);
+				char[] candidate = transcript.substring(start, start + length).toCharArray();
+				if(countNs(candidate) <= maxNs) {
+					bases = candidate;
+				}
+			}
+			addNs(random, bases, nRate);
+			rtrn.add(new Sequence(name, new String(bases)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Write sequences to a fasta file
+	 * @param sequences Sequences
+	 * @param file File to write
+	 * @throws IOException
+	 */
+	public static void writeFasta(Collection<Sequence> sequences, File file) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(file));
+		for(Sequence seq : sequences) {
+			w.write(">" + seq.getName() + "\n");
+			w.write(seq.getSequenceBases() + "\n");
+		}
+		w.close();
+	}
+	
+}
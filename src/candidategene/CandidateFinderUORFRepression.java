@@ -2,6 +2,8 @@ package candidategene;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Level;
@@ -13,6 +15,7 @@ import translation.DifferentialTranslationalEfficiency;
 import translation.ORFFinder;
 import translation.TranslationalEfficiencyFromBam;
 import translation.UpstreamORF;
+import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Gene;
 import guttmanlab.core.annotation.io.BEDFileIO;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
@@ -192,6 +195,33 @@ public class CandidateFinderUORFRepression implements CandidateFinder<Gene> {
 		return rtrn;
 	}
 
+	/**
+	 * Count reads over the genes, their CDSs and the CDSs of their uORFs in all samples at once,
+	 * so scoring the genes and uORFs does not query the bam files one region at a time
+	 * @throws IOException
+	 */
+	private void cacheCounts() throws IOException {
+		logger.info("Finding uORFs and counting reads over genes and uORFs...");
+		List<Annotation> regions = new ArrayList<Annotation>();
+		for(String chr : genes.keySet()) {
+			CloseableIterator<Gene> iter = genes.get(chr).sortedIterator();
+			while(iter.hasNext()) {
+				Gene gene = iter.next();
+				regions.add(gene);
+				if(gene.getCodingRegion() == null) continue;
+				regions.add(gene.getCodingRegion());
+				// Each uORF has the blocks of its parent gene, so only its CDS is a new region
+				CloseableIterator<UpstreamORF> uorfIter = UpstreamORF.findAllUpstreamORFs(orfFinder, gene).sortedIterator();
+				while(uorfIter.hasNext()) {
+					regions.add(uorfIter.next().getCodingRegion());
+				}
+				uorfIter.close();
+			}
+			iter.close();
+		}
+		diffTE.cacheCounts(regions);
+	}
+	
 	/**
 	 * Write candidates to a table and bed file
 	 * @param outFilePrefix Output file prefix
@@ -200,6 +230,7 @@ public class CandidateFinderUORFRepression implements CandidateFinder<Gene> {
 	private void writeResults(String outFilePrefix) throws IOException {
 		String outTable = outFilePrefix + ".out";
 		String outBed = outFilePrefix + ".bed";
+		cacheCounts();
 		logger.info("");
 		logger.info("Writing candidate uORFs to table " + outTable + " and bed file " + outBed + "...");
 		FileWriter wt = new FileWriter(outTable);
@@ -250,6 +281,7 @@ public class CandidateFinderUORFRepression implements CandidateFinder<Gene> {
 		p.addDoubleArg("-l2", "Cutoff for absolute value of log2(ratio) for translational efficiency", true);
 		p.addStringArg("-ot", "Output table", true);
 		p.addBooleanArg("-d", "Debug logging", false, false);
+		p.addStringArg("-cc", "Directory to save region counts in for reuse by later runs on the same bam files", false, null);
 		p.addIntArg("-min", "Minimum number of reads mapping to CDS in ribosome and control fraction to compute TE", false, TranslationalEfficiencyFromBam.TE_MIN_RAW_READS);
 		p.parse(args);
 		String genomeFasta = p.getStringArg("-gf");
@@ -270,6 +302,7 @@ public class CandidateFinderUORFRepression implements CandidateFinder<Gene> {
 		boolean isStrandSpecific = p.getBooleanArg("-ss");
 		double cutoffLog2ratio = p.getDoubleArg("-l2");
 		String outFile = p.getStringArg("-ot");
+		String countCacheDir = p.getStringArg("-cc");
 		
 		TranslationalEfficiencyFromBam.TE_MIN_RAW_READS = p.getIntArg("-min");
 		
@@ -288,11 +321,13 @@ public class CandidateFinderUORFRepression implements CandidateFinder<Gene> {
 				controlGenomeTotal1, controlGenomeTotal2, ribosomeExonTotal1, 
 				ribosomeExonTotal2, controlExonTotal1, controlExonTotal2, 
 				isStrandSpecific, cutoffLog2ratio);
+		if(countCacheDir != null) c.diffTE.setCountCache(countCacheDir);
 		
 		logger.info("");
 		logger.info("Done creating candidate uORF finder.");
 		
 		c.writeResults(outFile);
+		c.diffTE.closeCountCache();
 		
 		logger.info("");
 		logger.info("All done.");
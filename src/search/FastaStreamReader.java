@@ -0,0 +1,81 @@
+package search;
+
+import guttmanlab.core.sequence.Sequence;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the sequences in a fasta file one at a time
+ * Only the current sequence is held in memory, so large fasta files can be processed in a single pass
+ * @author prussell
+ *
+ */
+public class FastaStreamReader implements Iterator<Sequence> {
+
+	private BufferedReader reader;
+	private String nextHeader; // Header line of the next sequence, or null if there are no more sequences
+	private StringBuilder bases = new StringBuilder(); // Reused buffer for the bases of the current sequence
+
+	/**
+	 * @param fasta Fasta file
+	 * @throws IOException
+	 */
+	public FastaStreamReader(String fasta) throws IOException {
+		reader = new BufferedReader(new FileReader(fasta), 1 << 20);
+		String line = reader.readLine();
+		while(line != null && !line.startsWith(">")) {
+			line = reader.readLine();
+		}
+		nextHeader = line;
+		if(nextHeader == null) {
+			reader.close();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextHeader != null;
+	}
+
+	@Override
+	public Sequence next() {
+		if(nextHeader == null) {
+			throw new NoSuchElementException();
+		}
+		String name = nextHeader.substring(1);
+		bases.setLength(0);
+		try {
+			String line = reader.readLine();
+			while(line != null && !line.startsWith(">")) {
+				bases.append(line.trim());
+				line = reader.readLine();
+			}
+			nextHeader = line;
+			if(nextHeader == null) {
+				reader.close();
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("Error reading fasta file: " + e.getMessage(), e);
+		}
+		return new Sequence(name, bases.toString());
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the file before reading all the sequences
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		nextHeader = null;
+		reader.close();
+	}
+
+}
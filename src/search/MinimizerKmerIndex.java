@@ -0,0 +1,428 @@
+package search;
+
+import search.PackedKmerIndex.KmerSource;
+import search.PackedKmerIndex.KmerVisitor;
+import search.PackedKmerIndex.PackedKmerTable;
+import search.PackedKmerIndex.TargetStore;
+
+/**
+ * Sparse kmer index that stores only the minimizers of target kmers, for target sets too large for a full kmer index
+ * Like PackedKmerIndex, each target is indexed with a single kmer length: the max kmer length or the target length, whichever is shorter
+ * For each target kmer, the minimizer is the leftmost of the first w shorter m-mers with the smallest hash
+ * Only the minimizer positions are stored, along with the target sequences packed at 2 bits per base
+ * A query kmer is matched by computing its minimizer, looking up the target positions of the minimizer,
+ * and comparing the query kmer directly to the packed target sequence at each candidate
+ * Target kmers containing Ns are stored in full in a separate packed kmer table with Ns expanded, as in PackedKmerIndex,
+ * so the matches are the same as with the full index
+ * A smaller window stores more minimizers but gives fewer candidates to verify
+ * @author prussell
+ *
+ */
+public class MinimizerKmerIndex {
+	
+	/**
+	 * Maximum minimizer length
+	 * Query Ns inside a minimizer are expanded, so the length is kept short enough for the expansion to be bounded
+	 */
+	public static final int MAX_MINIMIZER_LENGTH = 15;
+	
+	private String[] targetNames; // Target names by target ID
+	private int[] targetLengths; // Target lengths by target ID
+	private long[][] packedTargets; // Target sequences by target ID, 32 bases per long with the first base in the high bits and Ns stored as A
+	private int maxk; // Maximum kmer length
+	private int minimizerLength; // Minimizer length m
+	private int window; // Number of m-mers per kmer to choose the minimizer from, or 0 for every m-mer in the kmer
+	private PackedKmerTable[] minimizerTablesByK; // Minimizers of target kmers without Ns and their positions on targets, by kmer length
+	private PackedKmerTable[] wildcardTablesByK; // Target kmers containing Ns, expanded, by kmer length, or null if there are none
+	
+	/**
+	 * Build the index
+	 * Clients should validate the target sequences before adding them to the store
+	 * Target IDs are assigned in the order targets were added
+	 * @param targets Target store
+	 * @param maxK Maximum kmer length
+	 * @param minimizerLength Minimizer length
+	 * @param window Number of m-mers per kmer to choose the minimizer from, or 0 to use every m-mer in the kmer
+	 */
+	public MinimizerKmerIndex(TargetStore targets, int maxK, int minimizerLength, int window) {
+		if(maxK < 1 || maxK > PackedKmerIndex.MAX_K) {
+			throw new IllegalArgumentException("Kmer length must be between 1 and " + PackedKmerIndex.MAX_K + ": " + maxK);
+		}
+		if(minimizerLength < 1 || minimizerLength > MAX_MINIMIZER_LENGTH) {
+			throw new IllegalArgumentException("Minimizer length must be between 1 and " + MAX_MINIMIZER_LENGTH + ": " + minimizerLength);
+		}
+		if(window < 0) {
+			throw new IllegalArgumentException("Minimizer window must be >= 0: " + window);
+		}
+		maxk = maxK;
+		this.minimizerLength = minimizerLength;
+		this.window = window;
+		int numTargets = targets.getNumTargets();
+		targetNames = new String[numTargets];
+		targetLengths = new int[numTargets];
+		packedTargets = new long[numTargets][];
+		for(int id = 0; id < numTargets; id++) {
+			targetNames[id] = targets.getName(id);
+			targetLengths[id] = targets.getBases(id).length;
+			packedTargets[id] = pack(targets.getBases(id));
+		}
+		minimizerTablesByK = new PackedKmerTable[maxk + 1];
+		wildcardTablesByK = new PackedKmerTable[maxk + 1];
+		for(int k = 1; k <= maxk; k++) {
+			boolean hasK = false;
+			for(int len : targetLengths) {
+				if(Math.min(len, maxk) == k) {
+					hasK = true;
+					break;
+				}
+			}
+			if(!hasK) continue;
+			minimizerTablesByK[k] = PackedKmerIndex.buildTable(getMinimizerLength(k), new WindowSource(targets, k, true));
+			PackedKmerTable wildcardTable = PackedKmerIndex.buildTable(k, new WindowSource(targets, k, false));
+			if(wildcardTable.getNumKmers() > 0) {
+				wildcardTablesByK[k] = wildcardTable;
+			}
+		}
+	}
+	
+	/**
+	 * Receives verified matches of a query kmer to targets
+	 */
+	public interface MatchCollector {
+		/**
+		 * @param targetId Target ID
+		 * @param targetStart Start position of match on target
+		 * @param queryStart Start position of match on query
+		 * @param k Kmer length
+		 * @param reverseComplement Whether the match is of the reverse complement of the query
+		 */
+		public void add(int targetId, int targetStart, int queryStart, int k, boolean reverseComplement);
+	}
+	
+	/**
+	 * Enumerates either the minimizers of target kmers without Ns, or the expanded target kmers with Ns, for one kmer length
+	 * @author prussell
+	 *
+	 */
+	private class WindowSource implements KmerSource {
+		
+		private TargetStore targets;
+		private int k;
+		private boolean minimizers; // True for minimizers of kmers without Ns, false for kmers with Ns
+		
+		public WindowSource(TargetStore targets, int k, boolean minimizers) {
+			this.targets = targets;
+			this.k = k;
+			this.minimizers = minimizers;
+		}
+		
+		@Override
+		public void forEachKmer(KmerVisitor visitor) {
+			int m = getMinimizerLength(k);
+			int w = getWindow(k);
+			for(int id = 0; id < targets.getNumTargets(); id++) {
+				byte[] seq = targets.getBases(id);
+				if(Math.min(seq.length, maxk) != k) continue;
+				RollingKmerIterator iter = new RollingKmerIterator(seq, k);
+				int minPos = -1; // Position on target of current minimizer, or -1 if it needs to be recomputed
+				long minCode = 0;
+				long minOrder = 0;
+				int lastVisited = -1; // Position of the last minimizer passed to the visitor
+				while(iter.next()) {
+					long code = iter.getCode();
+					long wildcards = iter.getWildcards();
+					int pos = iter.getPosition();
+					if(wildcards != 0) {
+						minPos = -1;
+						if(minimizers) continue;
+						int numExpansions = RollingKmerIterator.numExpansions(wildcards);
+						for(int i = 0; i < numExpansions; i++) {
+							visitor.visit(RollingKmerIterator.expandWildcards(code, wildcards, i), id, pos);
+						}
+						continue;
+					}
+					if(!minimizers) continue;
+					if(minPos < pos) {
+						// Previous minimizer is no longer in the window
+						minPos = -1;
+						for(int r = 0; r < w; r++) {
+							long mmer = mmer(code, k, m, r);
+							long order = order(mmer);
+							if(minPos < 0 || PackedKmerIndex.compareUnsigned(order, minOrder) < 0) {
+								minPos = pos + r;
+								minCode = mmer;
+								minOrder = order;
+							}
+						}
+					} else {
+						// Only the last m-mer of the window is new
+						long mmer = mmer(code, k, m, w - 1);
+						long order = order(mmer);
+						if(PackedKmerIndex.compareUnsigned(order, minOrder) < 0) {
+							minPos = pos + w - 1;
+							minCode = mmer;
+							minOrder = order;
+						}
+					}
+					if(minPos != lastVisited) {
+						visitor.visit(minCode, id, minPos);
+						lastVisited = minPos;
+					}
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Find the target kmers without Ns that match a query kmer, by looking up the minimizers the target kmer could have
+	 * and verifying candidates against the packed targets
+	 * Target kmers containing Ns must also be looked up in the wildcard table from getWildcardTable()
+	 * If the query kmer has Ns, the target minimizer is either the minimizer of the query m-mers without Ns,
+	 * or an m-mer overlapping an N with a hash no greater than that, so these are all looked up
+	 * @param k Kmer length
+	 * @param code Packed query kmer with Ns encoded as A
+	 * @param wildcards Positions of Ns as returned by RollingKmerIterator
+	 * @param queryStart Start position of kmer on query, passed to the collector
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query, passed to the collector
+	 * @param matches Collector to add verified matches to
+	 */
+	public void addMatches(int k, long code, long wildcards, int queryStart, boolean reverseComplement, MatchCollector matches) {
+		PackedKmerTable table = minimizerTablesByK[k];
+		if(table == null) return;
+		int m = table.getK();
+		int w = getWindow(k);
+		long compareMask = ~RollingKmerIterator.wildcardCodeMask(wildcards);
+		if(wildcards == 0) {
+			int minR = 0;
+			long minCode = 0;
+			long minOrder = 0;
+			for(int r = 0; r < w; r++) {
+				long mmer = mmer(code, k, m, r);
+				long order = order(mmer);
+				if(r == 0 || PackedKmerIndex.compareUnsigned(order, minOrder) < 0) {
+					minR = r;
+					minCode = mmer;
+					minOrder = order;
+				}
+			}
+			addVerifiedMatches(table, minCode, minR, k, code, compareMask, queryStart, reverseComplement, matches);
+			return;
+		}
+		// Smallest hash of m-mers without Ns
+		boolean hasMin = false;
+		long minOrder = 0;
+		long mmerWildcardMask = (1L << m) - 1;
+		for(int r = 0; r < w; r++) {
+			if(mmerWildcards(wildcards, k, m, r, mmerWildcardMask) != 0) continue;
+			long order = order(mmer(code, k, m, r));
+			if(!hasMin || PackedKmerIndex.compareUnsigned(order, minOrder) < 0) {
+				hasMin = true;
+				minOrder = order;
+			}
+		}
+		for(int r = 0; r < w; r++) {
+			long mmer = mmer(code, k, m, r);
+			long mmerWildcards = mmerWildcards(wildcards, k, m, r, mmerWildcardMask);
+			if(mmerWildcards == 0) {
+				if(order(mmer) == minOrder) {
+					addVerifiedMatches(table, mmer, r, k, code, compareMask, queryStart, reverseComplement, matches);
+				}
+				continue;
+			}
+			int numExpansions = RollingKmerIterator.numExpansions(mmerWildcards);
+			for(int i = 0; i < numExpansions; i++) {
+				long expanded = RollingKmerIterator.expandWildcards(mmer, mmerWildcards, i);
+				if(!hasMin || PackedKmerIndex.compareUnsigned(order(expanded), minOrder) <= 0) {
+					addVerifiedMatches(table, expanded, r, k, code, compareMask, queryStart, reverseComplement, matches);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Look up a minimizer and pass the candidate target kmers that match the query kmer to the collector
+	 * @param table Minimizer table
+	 * @param minimizer Packed minimizer
+	 * @param r Position of the minimizer within the query kmer
+	 * @param k Kmer length
+	 * @param code Packed query kmer
+	 * @param compareMask Mask of the code bits to compare, excluding query Ns
+	 * @param queryStart Start position of kmer on query
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query
+	 * @param matches Collector to add verified matches to
+	 */
+	private void addVerifiedMatches(PackedKmerTable table, long minimizer, int r, int k, long code, long compareMask, int queryStart, boolean reverseComplement, MatchCollector matches) {
+		int kmerIndex = table.find(minimizer);
+		if(kmerIndex < 0) return;
+		for(int i = table.getPositionsStart(kmerIndex); i < table.getPositionsEnd(kmerIndex); i++) {
+			int targetId = table.getTargetId(i);
+			int targetStart = table.getOffset(i) - r;
+			if(targetStart < 0 || targetStart + k > targetLengths[targetId]) continue;
+			if(((getTargetKmer(targetId, targetStart, k) ^ code) & compareMask) == 0) {
+				matches.add(targetId, targetStart, queryStart, k, reverseComplement);
+			}
+		}
+	}
+	
+	/**
+	 * @param k Kmer length
+	 * @return Minimizer length used for kmers of this length
+	 */
+	private int getMinimizerLength(int k) {
+		return Math.min(minimizerLength, k);
+	}
+	
+	/**
+	 * @param k Kmer length
+	 * @return Number of m-mers at the start of each kmer that the minimizer is chosen from
+	 */
+	private int getWindow(int k) {
+		int maxWindow = k - getMinimizerLength(k) + 1;
+		return window == 0 ? maxWindow : Math.min(window, maxWindow);
+	}
+	
+	/**
+	 * Get an m-mer from within a packed kmer
+	 * @param code Packed kmer
+	 * @param k Kmer length
+	 * @param m M-mer length
+	 * @param r Start position of m-mer within kmer
+	 * @return Packed m-mer
+	 */
+	private static long mmer(long code, int k, int m, int r) {
+		return (code >>> (2 * (k - m - r))) & ((1L << (2 * m)) - 1);
+	}
+	
+	/**
+	 * Get the wildcard bits of an m-mer from within a kmer
+	 * @param wildcards Wildcard bits of the kmer
+	 * @param k Kmer length
+	 * @param m M-mer length
+	 * @param r Start position of m-mer within kmer
+	 * @param mask Mask for the m bits of the m-mer wildcards
+	 * @return Wildcard bits of the m-mer
+	 */
+	private static long mmerWildcards(long wildcards, int k, int m, int r, long mask) {
+		return (wildcards >>> (k - m - r)) & mask;
+	}
+	
+	/**
+	 * Order of m-mers for choosing minimizers
+	 * A hash is used instead of alphabetical order so low complexity m-mers like poly-A are not favored
+	 * @param mmer Packed m-mer
+	 * @return Finalizer from MurmurHash3, to be compared as unsigned values
+	 */
+	private static long order(long mmer) {
+		long h = mmer;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * Pack a sequence at 2 bits per base, with Ns stored as A
+	 * @param bases Sequence
+	 * @return Packed sequence, 32 bases per long with the first base in the high bits
+	 */
+	private static long[] pack(byte[] bases) {
+		long[] rtrn = new long[(bases.length + 31) / 32];
+		for(int i = 0; i < bases.length; i++) {
+			int b = RollingKmerIterator.encodeBase(bases[i]);
+			if(b > 0) {
+				rtrn[i >>> 5] |= ((long) b) << (2 * (31 - (i & 31)));
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Get a kmer from a packed target sequence
+	 * @param targetId Target ID
+	 * @param start Start position on target
+	 * @param k Kmer length
+	 * @return Packed kmer, with any Ns encoded as A
+	 */
+	private long getTargetKmer(int targetId, int start, int k) {
+		long[] packed = packedTargets[targetId];
+		int word = start >>> 5;
+		int shift = 2 * (start & 31);
+		long rtrn = packed[word] << shift;
+		if(shift > 0 && (start & 31) + k > 32) {
+			rtrn |= packed[word + 1] >>> (64 - shift);
+		}
+		return rtrn >>> (64 - 2 * k);
+	}
+	
+	/**
+	 * @param k Kmer length
+	 * @return Whether any targets are indexed with this kmer length
+	 */
+	public boolean hasKmerLength(int k) {
+		return k <= maxk && minimizerTablesByK[k] != null;
+	}
+	
+	/**
+	 * @param k Kmer length
+	 * @return Table of expanded target kmers containing Ns for this kmer length, or null if there are none
+	 */
+	public PackedKmerTable getWildcardTable(int k) {
+		return k <= maxk ? wildcardTablesByK[k] : null;
+	}
+	
+	/**
+	 * @return Number of targets
+	 */
+	public int getNumTargets() {
+		return targetNames.length;
+	}
+	
+	/**
+	 * @param targetId Target ID
+	 * @return Target name
+	 */
+	public String getTargetName(int targetId) {
+		return targetNames[targetId];
+	}
+	
+	/**
+	 * @param targetId Target ID
+	 * @return Target length
+	 */
+	public int getTargetLength(int targetId) {
+		return targetLengths[targetId];
+	}
+	
+	/**
+	 * @return Maximum kmer length
+	 */
+	public int getMaxK() {
+		return maxk;
+	}
+	
+	/**
+	 * @return Total number of stored minimizer positions
+	 */
+	public long getNumMinimizerPositions() {
+		long rtrn = 0;
+		for(PackedKmerTable table : minimizerTablesByK) {
+			if(table != null) rtrn += table.getNumPositions();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @return Total number of stored positions of target kmers with Ns
+	 */
+	public long getNumWildcardPositions() {
+		long rtrn = 0;
+		for(PackedKmerTable table : wildcardTablesByK) {
+			if(table != null) rtrn += table.getNumPositions();
+		}
+		return rtrn;
+	}
+	
+}
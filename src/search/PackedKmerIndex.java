@@ -0,0 +1,974 @@
+package search;
+
+import guttmanlab.core.sequence.Sequence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Kmer index over a set of target sequences with kmers of up to 32 bases stored as 2-bit packed longs
+ * Each target is indexed with a single kmer length: the max kmer length or the target length, whichever is shorter
+ * There is a separate table for each kmer length present, because packed codes of different lengths are not distinguishable
+ * Ns in targets are treated as wildcards and expanded to every possible base
+ * Target positions are stored as parallel flat arrays of target ID and offset
+ * The index can be written to a binary file and later memory mapped from the file instead of rebuilt
+ * @author prussell
+ *
+ */
+public class PackedKmerIndex {
+	
+	/**
+	 * Maximum kmer length that fits in a packed long
+	 */
+	public static final int MAX_K = 32;
+	
+	private static final int FILE_MAGIC = 0x504b4d49; // "PKMI"
+	private static final int FILE_VERSION = 1;
+	private static final long MAX_SECTION_BYTES = Integer.MAX_VALUE; // Largest array that can be memory mapped as one buffer; tables are limited to this at build time so every index that is built can be loaded
+	private static final int NUM_ROTATIONS = 4; // Number of rotations of each table that can be searched by prefix, for query kmers with Ns
+	
+	private String[] targetNames; // Target names by target ID
+	private int[] targetLengths; // Target lengths by target ID
+	private PackedKmerTable[] tablesByK; // Table for each kmer length, or null if no targets use that length
+	private int maxk; // Maximum kmer length
+	
+	/**
+	 * Build the index
+	 * Clients should validate the target sequences before calling
+	 * Target IDs are assigned in iteration order
+	 * @param targets Target sequences
+	 * @param maxK Maximum kmer length
+	 */
+	public PackedKmerIndex(Collection<Sequence> targets, int maxK) {
+		this(toTargetStore(targets), maxK);
+	}
+	
+	/**
+	 * Build the index from targets that have been collected in a target store
+	 * Clients should validate the target sequences before adding them to the store
+	 * Target IDs are assigned in the order targets were added
+	 * @param targets Target store
+	 * @param maxK Maximum kmer length
+	 */
+	public PackedKmerIndex(TargetStore targets, int maxK) {
+		if(maxK < 1 || maxK > MAX_K) {
+			throw new IllegalArgumentException("Kmer length must be between 1 and " + MAX_K + ": " + maxK);
+		}
+		maxk = maxK;
+		int numTargets = targets.getNumTargets();
+		targetNames = targets.names.toArray(new String[numTargets]);
+		targetLengths = new int[numTargets];
+		for(int id = 0; id < numTargets; id++) {
+			targetLengths[id] = targets.bases.get(id).length;
+		}
+		tablesByK = new PackedKmerTable[maxk + 1];
+		for(int k = 1; k <= maxk; k++) {
+			boolean hasK = false;
+			for(int len : targetLengths) {
+				if(Math.min(len, maxk) == k) {
+					hasK = true;
+					break;
+				}
+			}
+			if(hasK) {
+				tablesByK[k] = buildTable(targets.bases, k);
+			}
+		}
+	}
+	
+	/**
+	 * @param targets Target sequences
+	 * @return Target store containing the sequences in iteration order
+	 */
+	private static TargetStore toTargetStore(Collection<Sequence> targets) {
+		TargetStore rtrn = new TargetStore();
+		for(Sequence target : targets) {
+			rtrn.add(target);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Create an index from tables that have already been built
+	 * @param maxK Maximum kmer length
+	 * @param names Target names by target ID
+	 * @param lengths Target lengths by target ID
+	 * @param tables Tables by kmer length
+	 */
+	private PackedKmerIndex(int maxK, String[] names, int[] lengths, PackedKmerTable[] tables) {
+		maxk = maxK;
+		targetNames = names;
+		targetLengths = lengths;
+		tablesByK = tables;
+	}
+	
+	/**
+	 * Write the index to a binary file that can be loaded with mapFromFile()
+	 * The file starts with a header containing the kmer length and target names and lengths,
+	 * followed by the arrays of each table, each starting at a multiple of 8 bytes
+	 * If writing fails, the partial file is deleted
+	 * @param file File to write
+	 * @throws IOException
+	 */
+	public void writeToFile(String file) throws IOException {
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(maxk);
+		header.writeInt(targetNames.length);
+		for(int i = 0; i < targetNames.length; i++) {
+			header.writeUTF(targetNames[i]);
+			header.writeInt(targetLengths[i]);
+		}
+		int numTables = 0;
+		for(PackedKmerTable table : tablesByK) {
+			if(table != null) numTables++;
+		}
+		header.writeInt(numTables);
+		for(PackedKmerTable table : tablesByK) {
+			if(table == null) continue;
+			header.writeInt(table.getK());
+			header.writeInt(table.getNumKmers());
+			header.writeInt(table.getNumPositions());
+			header.writeInt(table.slots.capacity());
+		}
+		header.close();
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		boolean written = false;
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(headerBytes.size());
+			headerBytes.writeTo(out);
+			pad(out, 12 + headerBytes.size());
+			for(PackedKmerTable table : tablesByK) {
+				if(table == null) continue;
+				for(int i = 0; i < table.kmers.capacity(); i++) out.writeLong(table.kmers.get(i));
+				for(int i = 0; i < table.starts.capacity(); i++) out.writeInt(table.starts.get(i));
+				pad(out, 4L * table.starts.capacity());
+				for(int i = 0; i < table.targetIds.capacity(); i++) out.writeInt(table.targetIds.get(i));
+				pad(out, 4L * table.targetIds.capacity());
+				for(int i = 0; i < table.offsets.capacity(); i++) out.writeInt(table.offsets.get(i));
+				pad(out, 4L * table.offsets.capacity());
+				for(int i = 0; i < table.slots.capacity(); i++) out.writeInt(table.slots.get(i));
+				pad(out, 4L * table.slots.capacity());
+			}
+			out.close();
+			written = true;
+		} finally {
+			if(!written) {
+				// Don't leave a truncated index that a later run would map
+				try {
+					out.close();
+				} catch(IOException e) {
+					// Keep the original exception
+				}
+				new File(file).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Write zeros after a section so the next section starts at a multiple of 8 bytes
+	 * @param out Output stream
+	 * @param sectionLength Number of bytes in the section just written
+	 * @throws IOException
+	 */
+	private static void pad(DataOutputStream out, long sectionLength) throws IOException {
+		for(long i = sectionLength; i < paddedLength(sectionLength); i++) {
+			out.writeByte(0);
+		}
+	}
+	
+	/**
+	 * Load an index written by writeToFile()
+	 * The tables are memory mapped rather than read into the heap, so loading is fast
+	 * and the pages are shared through the OS page cache with other processes using the same file
+	 * @param file Index file
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static PackedKmerIndex mapFromFile(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		try {
+			ByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+			if(start.getInt() != FILE_MAGIC) {
+				throw new IllegalArgumentException("Not a packed kmer index file: " + file);
+			}
+			int version = start.getInt();
+			if(version != FILE_VERSION) {
+				throw new IllegalArgumentException("Unsupported packed kmer index version " + version + " in " + file + ". Rebuild the index.");
+			}
+			int headerSize = start.getInt();
+			byte[] headerBytes = new byte[headerSize];
+			channel.map(FileChannel.MapMode.READ_ONLY, 12, headerSize).get(headerBytes);
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+			int maxK = header.readInt();
+			int numTargets = header.readInt();
+			String[] names = new String[numTargets];
+			int[] lengths = new int[numTargets];
+			for(int i = 0; i < numTargets; i++) {
+				names[i] = header.readUTF();
+				lengths[i] = header.readInt();
+			}
+			int numTables = header.readInt();
+			PackedKmerTable[] tables = new PackedKmerTable[maxK + 1];
+			long pos = paddedLength(12 + headerSize);
+			for(int t = 0; t < numTables; t++) {
+				int k = header.readInt();
+				int numKmers = header.readInt();
+				int numPositions = header.readInt();
+				int numSlots = header.readInt();
+				// Descriptors come before all data, so compute section offsets from the running position
+				LongBuffer kmers = map(channel, pos, 8L * numKmers).asLongBuffer();
+				pos += paddedLength(8L * numKmers);
+				IntBuffer starts = map(channel, pos, 4L * (numKmers + 1)).asIntBuffer();
+				pos += paddedLength(4L * (numKmers + 1));
+				IntBuffer targetIds = map(channel, pos, 4L * numPositions).asIntBuffer();
+				pos += paddedLength(4L * numPositions);
+				IntBuffer offsets = map(channel, pos, 4L * numPositions).asIntBuffer();
+				pos += paddedLength(4L * numPositions);
+				IntBuffer slots = map(channel, pos, 4L * numSlots).asIntBuffer();
+				pos += paddedLength(4L * numSlots);
+				tables[k] = new PackedKmerTable(k, kmers, starts, targetIds, offsets, slots);
+			}
+			return new PackedKmerIndex(maxK, names, lengths, tables);
+		} finally {
+			// Mappings remain valid after the channel is closed
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Map a section of a file
+	 * @param channel File channel
+	 * @param pos Start position in file
+	 * @param size Number of bytes
+	 * @return Read only buffer
+	 * @throws IOException
+	 */
+	private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+		if(size > MAX_SECTION_BYTES) {
+			throw new IllegalArgumentException("Index section is too large to map: " + size + " bytes");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+	}
+	
+	/**
+	 * Check during construction that an array of a table will fit in one section of the index file
+	 * @param k Kmer length of the table
+	 * @param size Number of bytes in the array
+	 * @param description Description of the array for the error message
+	 */
+	private static void checkSectionSize(int k, long size, String description) {
+		if(size > MAX_SECTION_BYTES) {
+			throw new IllegalStateException("Too many " + description + " for a single table with k=" + k + ": " + size + " bytes is more than the maximum of " + MAX_SECTION_BYTES);
+		}
+	}
+	
+	/**
+	 * @param length Number of bytes
+	 * @return The number rounded up to a multiple of 8
+	 */
+	private static long paddedLength(long length) {
+		return (length + 7) / 8 * 8;
+	}
+	
+	/**
+	 * @return Number of targets
+	 */
+	public int getNumTargets() {
+		return targetNames.length;
+	}
+	
+	/**
+	 * @param targetId Target ID
+	 * @return Target name
+	 */
+	public String getTargetName(int targetId) {
+		return targetNames[targetId];
+	}
+	
+	/**
+	 * @param targetId Target ID
+	 * @return Target length
+	 */
+	public int getTargetLength(int targetId) {
+		return targetLengths[targetId];
+	}
+	
+	/**
+	 * @return Maximum kmer length
+	 */
+	public int getMaxK() {
+		return maxk;
+	}
+	
+	/**
+	 * @param k Kmer length
+	 * @return The table of kmers of this length, or null if no target is indexed with this length
+	 */
+	public PackedKmerTable getTable(int k) {
+		if(k < 1 || k >= tablesByK.length) return null;
+		return tablesByK[k];
+	}
+	
+	/**
+	 * @return Total number of target positions stored in all tables
+	 */
+	public long getNumPositions() {
+		long rtrn = 0;
+		for(PackedKmerTable table : tablesByK) {
+			if(table != null) rtrn += table.getNumPositions();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @return Total number of distinct kmers stored in all tables
+	 */
+	public long getNumKmers() {
+		long rtrn = 0;
+		for(PackedKmerTable table : tablesByK) {
+			if(table != null) rtrn += table.getNumKmers();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Get the 2-bit code of a base
+	 * @param c Base
+	 * @return 0-3 for A, C, G, T (case insensitive), -1 for N, or -2 for any other character
+	 */
+	public static int encodeBase(char c) {
+		switch(c) {
+		case 'A': case 'a': return 0;
+		case 'C': case 'c': return 1;
+		case 'G': case 'g': return 2;
+		case 'T': case 't': return 3;
+		case 'N': case 'n': return -1;
+		default: return -2;
+		}
+	}
+	
+	/**
+	 * Pack a kmer into a long, first base in the most significant bits
+	 * @param kmer Kmer of at most 32 bases with no Ns
+	 * @return Packed code
+	 */
+	public static long encode(CharSequence kmer) {
+		int k = kmer.length();
+		if(k > MAX_K) {
+			throw new IllegalArgumentException("Kmer longer than " + MAX_K + ": " + kmer);
+		}
+		long rtrn = 0;
+		for(int i = 0; i < k; i++) {
+			int b = encodeBase(kmer.charAt(i));
+			if(b < 0) {
+				throw new IllegalArgumentException("Can't encode character " + kmer.charAt(i) + " in kmer " + kmer);
+			}
+			rtrn = (rtrn << 2) | b;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Unpack a kmer
+	 * @param code Packed code
+	 * @param k Kmer length
+	 * @return Upper case kmer sequence
+	 */
+	public static String decode(long code, int k) {
+		char[] rtrn = new char[k];
+		for(int i = k - 1; i >= 0; i--) {
+			rtrn[i] = PerfectKmerSearch.alphabet[(int)(code & 3)];
+			code >>>= 2;
+		}
+		return new String(rtrn);
+	}
+	
+	/**
+	 * Compare two packed codes as unsigned values, which is the same as comparing the kmers alphabetically
+	 * @param code1 Code 1
+	 * @param code2 Code 2
+	 * @return Negative, zero or positive if code1 is less than, equal to or greater than code2
+	 */
+	public static int compareUnsigned(long code1, long code2) {
+		long c1 = code1 + Long.MIN_VALUE;
+		long c2 = code2 + Long.MIN_VALUE;
+		return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+	}
+	
+	/**
+	 * Visit every kmer of the given length in a target sequence, with Ns expanded to every possible base
+	 * @param seq Target sequence
+	 * @param k Kmer length
+	 * @param targetId Target ID to pass to the visitor
+	 * @param visitor Visitor
+	 */
+	private static void forEachKmer(byte[] seq, int k, int targetId, KmerVisitor visitor) {
+		RollingKmerIterator iter = new RollingKmerIterator(seq, k);
+		while(iter.next()) {
+			long code = iter.getCode();
+			long wildcards = iter.getWildcards();
+			int pos = iter.getPosition();
+			if(wildcards == 0) {
+				visitor.visit(code, targetId, pos);
+				continue;
+			}
+			int numExpansions = RollingKmerIterator.numExpansions(wildcards);
+			for(int i = 0; i < numExpansions; i++) {
+				visitor.visit(RollingKmerIterator.expandWildcards(code, wildcards, i), targetId, pos);
+			}
+		}
+	}
+	
+	/**
+	 * Receives target kmers as they are enumerated
+	 */
+	interface KmerVisitor {
+		public void visit(long code, int targetId, int pos);
+	}
+	
+	/**
+	 * Enumerates the kmers and target positions to store in a table
+	 * Must give the same kmers in the same order each time it is called
+	 */
+	interface KmerSource {
+		public void forEachKmer(KmerVisitor visitor);
+	}
+	
+	/**
+	 * Build the table for a single kmer length
+	 * @param bases Target sequences by target ID
+	 * @param k Kmer length
+	 * @return The table
+	 */
+	private PackedKmerTable buildTable(final List<byte[]> bases, final int k) {
+		return buildTable(k, new KmerSource() {
+			@Override
+			public void forEachKmer(KmerVisitor visitor) {
+				for(int id = 0; id < bases.size(); id++) {
+					byte[] seq = bases.get(id);
+					if(Math.min(seq.length, maxk) != k) continue;
+					PackedKmerIndex.forEachKmer(seq, k, id, visitor);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Build a table from the kmers and positions given by a source
+	 * Makes one pass over the source to count positions per kmer, then a second pass to fill in positions
+	 * @param k Kmer length
+	 * @param source Kmers and positions to store
+	 * @return The table
+	 */
+	static PackedKmerTable buildTable(int k, KmerSource source) {
+		final PackedKmerTable.Counter counter = new PackedKmerTable.Counter();
+		source.forEachKmer(new KmerVisitor() {
+			@Override
+			public void visit(long code, int targetId, int pos) {
+				counter.increment(code);
+			}
+		});
+		final PackedKmerTable table = counter.createTable(k);
+		source.forEachKmer(new KmerVisitor() {
+			@Override
+			public void visit(long code, int targetId, int pos) {
+				table.addPosition(code, targetId, pos);
+			}
+		});
+		table.restoreStarts();
+		return table;
+	}
+	
+	/**
+	 * Target sequences collected for building an index
+	 * Bases are stored as one byte per base so targets can be added as they are read from a file
+	 * without keeping the sequence objects
+	 * @author prussell
+	 *
+	 */
+	public static class TargetStore {
+		
+		private List<String> names = new ArrayList<String>(); // Target names by target ID
+		private List<byte[]> bases = new ArrayList<byte[]>(); // Target bases by target ID
+		
+		/**
+		 * Add a target
+		 * @param target Target sequence
+		 */
+		public void add(Sequence target) {
+			names.add(target.getName());
+			bases.add(target.getSequenceBases().getBytes());
+		}
+		
+		/**
+		 * @return Number of targets added
+		 */
+		public int getNumTargets() {
+			return names.size();
+		}
+		
+		/**
+		 * @param targetId Target ID
+		 * @return Target name
+		 */
+		String getName(int targetId) {
+			return names.get(targetId);
+		}
+		
+		/**
+		 * @param targetId Target ID
+		 * @return Target bases, one byte per base
+		 */
+		byte[] getBases(int targetId) {
+			return bases.get(targetId);
+		}
+		
+	}
+	
+	/**
+	 * Table of kmers of a single length
+	 * Distinct kmers are stored sorted (unsigned) with a compressed list of target positions per kmer
+	 * Arrays are stored in buffers so the same class can use heap arrays or memory mapped files
+	 * Lookups by kmer go through a primitive open addressing table of indices into the sorted kmers
+	 * @author prussell
+	 *
+	 */
+	public static class PackedKmerTable {
+		
+		private int k; // Kmer length
+		private LongBuffer kmers; // Distinct packed kmers, sorted as unsigned values
+		private IntBuffer starts; // Start index of positions of kmer i is starts[i]; end is starts[i+1]
+		private IntBuffer targetIds; // Target ID of each position
+		private IntBuffer offsets; // Offset on target of each position
+		private IntBuffer slots; // Open addressing table of (index into kmers) + 1, or 0 if empty
+		private int slotMask;
+		private volatile int[][] rotationOrders; // For each rotation after the first, kmer indices sorted by rotated kmer; built on first use
+		
+		/**
+		 * Create a table from existing buffers, e.g. mapped from a file
+		 * @param k Kmer length
+		 * @param kmers Distinct packed kmers, sorted as unsigned values
+		 * @param starts Start index of positions of each kmer, plus total number of positions
+		 * @param targetIds Target ID of each position
+		 * @param offsets Offset on target of each position
+		 * @param slots Open addressing table of (index into kmers) + 1, or 0 if empty
+		 */
+		private PackedKmerTable(int k, LongBuffer kmers, IntBuffer starts, IntBuffer targetIds, IntBuffer offsets, IntBuffer slots) {
+			this.k = k;
+			this.kmers = kmers;
+			this.starts = starts;
+			this.targetIds = targetIds;
+			this.offsets = offsets;
+			this.slots = slots;
+			slotMask = slots.capacity() - 1;
+		}
+		
+		/**
+		 * Create the table with no positions
+		 * @param k Kmer length
+		 * @param sortedKmers Distinct kmers sorted as unsigned values
+		 */
+		private PackedKmerTable(int k, long[] sortedKmers) {
+			this.k = k;
+			checkSectionSize(k, 8L * sortedKmers.length, "kmers");
+			kmers = LongBuffer.wrap(sortedKmers);
+			int capacity = tableCapacity(sortedKmers.length);
+			checkSectionSize(k, 4L * capacity, "hash slots");
+			int[] slotArray = new int[capacity];
+			slotMask = capacity - 1;
+			for(int i = 0; i < sortedKmers.length; i++) {
+				int slot = hash(sortedKmers[i]) & slotMask;
+				while(slotArray[slot] != 0) {
+					slot = (slot + 1) & slotMask;
+				}
+				slotArray[slot] = i + 1;
+			}
+			slots = IntBuffer.wrap(slotArray);
+		}
+		
+		/**
+		 * Allocate position arrays
+		 * Start indices are left pointing at the beginning of each kmer's positions, to be used as cursors by addPosition()
+		 * @param counts Number of positions for each kmer
+		 */
+		private void allocatePositions(int[] counts) {
+			int numKmers = getNumKmers();
+			starts = IntBuffer.allocate(numKmers + 1);
+			long total = 0;
+			for(int i = 0; i < numKmers; i++) {
+				starts.put(i, (int) total);
+				total += counts[i];
+				// Each of targetIds and offsets is one section of the index file
+				checkSectionSize(k, 4L * total, "positions");
+			}
+			starts.put(numKmers, (int) total);
+			targetIds = IntBuffer.allocate((int) total);
+			offsets = IntBuffer.allocate((int) total);
+		}
+		
+		/**
+		 * Store a position for a kmer during construction
+		 * Positions are filled in the order they are added
+		 * @param code Packed kmer
+		 * @param targetId Target ID
+		 * @param pos Offset on target
+		 */
+		private void addPosition(long code, int targetId, int pos) {
+			int i = find(code);
+			int p = starts.get(i);
+			starts.put(i, p + 1);
+			targetIds.put(p, targetId);
+			offsets.put(p, pos);
+		}
+		
+		/**
+		 * Restore start indices after they were used as cursors while adding positions
+		 * After this, start of kmer i is the old end of kmer i-1
+		 */
+		private void restoreStarts() {
+			for(int i = getNumKmers(); i > 0; i--) {
+				starts.put(i, starts.get(i - 1));
+			}
+			starts.put(0, 0);
+		}
+		
+		/**
+		 * @return Kmer length
+		 */
+		public int getK() {
+			return k;
+		}
+		
+		/**
+		 * @return Number of distinct kmers
+		 */
+		public int getNumKmers() {
+			return kmers.capacity();
+		}
+		
+		/**
+		 * @return Number of target positions
+		 */
+		public int getNumPositions() {
+			return targetIds.capacity();
+		}
+		
+		/**
+		 * Look up a kmer
+		 * @param code Packed kmer
+		 * @return Index of the kmer in this table, or -1 if not present
+		 */
+		public int find(long code) {
+			int slot = hash(code) & slotMask;
+			while(true) {
+				int s = slots.get(slot);
+				if(s == 0) return -1;
+				if(kmers.get(s - 1) == code) return s - 1;
+				slot = (slot + 1) & slotMask;
+			}
+		}
+		
+		/**
+		 * Binary search for the first kmer in sorted order that is not less than the code
+		 * Kmers sharing a prefix are contiguous, so this gives the start of the range of kmers with a given prefix
+		 * @param code Packed kmer
+		 * @return Index of first kmer greater than or equal to code, or number of kmers if there is none
+		 */
+		public int lowerBound(long code) {
+			int lo = 0;
+			int hi = getNumKmers();
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(compareUnsigned(kmers.get(mid), code) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+		
+		/**
+		 * @param kmerIndex Kmer index
+		 * @return Packed kmer
+		 */
+		public long getKmer(int kmerIndex) {
+			return kmers.get(kmerIndex);
+		}
+		
+		/**
+		 * Rotations of the kmers that can be searched by prefix
+		 * Rotation r starts the kmer at base getRotationOffset(r) and wraps around, so windows of the kmer starting near
+		 * that base are prefixes of the rotated kmer. Rotation 0 is the kmers themselves.
+		 * @return Number of rotations
+		 */
+		public int getNumRotations() {
+			return k < NUM_ROTATIONS ? 1 : NUM_ROTATIONS;
+		}
+		
+		/**
+		 * @param rotation Rotation
+		 * @return Position in the kmer of the first base of the rotated kmer
+		 */
+		public int getRotationOffset(int rotation) {
+			return rotation * k / NUM_ROTATIONS;
+		}
+		
+		/**
+		 * @param code Packed kmer
+		 * @param rotation Rotation
+		 * @return Packed kmer rotated to start at the rotation offset
+		 */
+		public long rotate(long code, int rotation) {
+			int offset = getRotationOffset(rotation);
+			if(offset == 0) return code;
+			long rtrn = (code << (2 * offset)) | (code >>> (2 * (k - offset)));
+			return k == 32 ? rtrn : rtrn & ((1L << (2 * k)) - 1);
+		}
+		
+		/**
+		 * Binary search for the first kmer in the order of a rotation whose rotated kmer is not less than the code
+		 * Rotated kmers sharing a prefix are contiguous in the order
+		 * @param rotation Rotation
+		 * @param rotatedCode Rotated packed kmer
+		 * @return Position in the order of the first rotated kmer greater than or equal to the code, or number of kmers if there is none
+		 */
+		public int lowerBoundRotated(int rotation, long rotatedCode) {
+			if(rotation == 0) return lowerBound(rotatedCode);
+			int[] order = getRotationOrder(rotation);
+			int lo = 0;
+			int hi = order.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(compareUnsigned(rotate(kmers.get(order[mid]), rotation), rotatedCode) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+		
+		/**
+		 * @param rotation Rotation
+		 * @param orderIndex Position in the order of the rotation
+		 * @return Index of the kmer at the position in the order
+		 */
+		public int getRotatedKmerIndex(int rotation, int orderIndex) {
+			return rotation == 0 ? orderIndex : getRotationOrder(rotation)[orderIndex];
+		}
+		
+		/**
+		 * @param rotation Rotation after the first
+		 * @return Kmer indices sorted by rotated kmer
+		 */
+		private int[] getRotationOrder(int rotation) {
+			int[][] orders = rotationOrders;
+			if(orders == null) {
+				synchronized(this) {
+					orders = rotationOrders;
+					if(orders == null) {
+						orders = buildRotationOrders();
+						rotationOrders = orders;
+					}
+				}
+			}
+			return orders[rotation];
+		}
+		
+		/**
+		 * @return For each rotation after the first, kmer indices sorted by rotated kmer
+		 */
+		private int[][] buildRotationOrders() {
+			int numKmers = getNumKmers();
+			int[][] rtrn = new int[getNumRotations()][];
+			long[] rotated = new long[numKmers];
+			for(int r = 1; r < rtrn.length; r++) {
+				// Flip the sign bit so a signed sort gives unsigned order
+				for(int i = 0; i < numKmers; i++) {
+					rotated[i] = rotate(kmers.get(i), r) + Long.MIN_VALUE;
+				}
+				Arrays.sort(rotated);
+				int[] order = new int[numKmers];
+				for(int i = 0; i < numKmers; i++) {
+					order[i] = find(unrotate(rotated[i] - Long.MIN_VALUE, r));
+				}
+				rtrn[r] = order;
+			}
+			return rtrn;
+		}
+		
+		/**
+		 * @param rotatedCode Rotated packed kmer
+		 * @param rotation Rotation
+		 * @return The packed kmer before rotation
+		 */
+		private long unrotate(long rotatedCode, int rotation) {
+			int offset = getRotationOffset(rotation);
+			if(offset == 0) return rotatedCode;
+			long rtrn = (rotatedCode >>> (2 * offset)) | (rotatedCode << (2 * (k - offset)));
+			return k == 32 ? rtrn : rtrn & ((1L << (2 * k)) - 1);
+		}
+		
+		/**
+		 * @param kmerIndex Kmer index
+		 * @return Index of first position of the kmer
+		 */
+		public int getPositionsStart(int kmerIndex) {
+			return starts.get(kmerIndex);
+		}
+		
+		/**
+		 * @param kmerIndex Kmer index
+		 * @return One past the index of the last position of the kmer
+		 */
+		public int getPositionsEnd(int kmerIndex) {
+			return starts.get(kmerIndex + 1);
+		}
+		
+		/**
+		 * @param positionIndex Position index
+		 * @return Target ID at the position
+		 */
+		public int getTargetId(int positionIndex) {
+			return targetIds.get(positionIndex);
+		}
+		
+		/**
+		 * @param positionIndex Position index
+		 * @return Offset on the target at the position
+		 */
+		public int getOffset(int positionIndex) {
+			return offsets.get(positionIndex);
+		}
+		
+		/**
+		 * @param numKmers Number of kmers to store
+		 * @return Power of 2 table size with load factor at most 0.5
+		 */
+		private static int tableCapacity(int numKmers) {
+			int rtrn = 2;
+			while(rtrn < 2L * numKmers) {
+				if(rtrn >= (1 << 30)) {
+					throw new IllegalStateException("Too many kmers for a single table: " + numKmers);
+				}
+				rtrn <<= 1;
+			}
+			return rtrn;
+		}
+		
+		/**
+		 * Finalizer from MurmurHash3
+		 * @param code Packed kmer
+		 * @return Hash
+		 */
+		private static int hash(long code) {
+			long h = code;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return (int) h;
+		}
+		
+		/**
+		 * Counts target positions per distinct kmer before the table is allocated
+		 * @author prussell
+		 *
+		 */
+		private static class Counter {
+			
+			private long[] keys = new long[1024];
+			private int[] counts = new int[1024]; // 0 means empty slot
+			private int size = 0;
+			
+			/**
+			 * Count one position for the kmer
+			 * @param code Packed kmer
+			 */
+			public void increment(long code) {
+				int mask = keys.length - 1;
+				int slot = hash(code) & mask;
+				while(counts[slot] != 0) {
+					if(keys[slot] == code) {
+						counts[slot]++;
+						return;
+					}
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = code;
+				counts[slot] = 1;
+				size++;
+				if(2 * size > keys.length) {
+					grow();
+				}
+			}
+			
+			private void grow() {
+				long[] oldKeys = keys;
+				int[] oldCounts = counts;
+				keys = new long[tableCapacity(size) * 2];
+				counts = new int[keys.length];
+				int mask = keys.length - 1;
+				for(int i = 0; i < oldKeys.length; i++) {
+					if(oldCounts[i] == 0) continue;
+					int slot = hash(oldKeys[i]) & mask;
+					while(counts[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+			
+			/**
+			 * Allocate a table with room for the counted positions
+			 * @param k Kmer length
+			 * @return Empty table
+			 */
+			public PackedKmerTable createTable(int k) {
+				// Flip the sign bit so signed sort gives unsigned order
+				long[] sorted = new long[size];
+				int n = 0;
+				for(int i = 0; i < keys.length; i++) {
+					if(counts[i] != 0) sorted[n++] = keys[i] ^ Long.MIN_VALUE;
+				}
+				Arrays.sort(sorted);
+				for(int i = 0; i < n; i++) {
+					sorted[i] ^= Long.MIN_VALUE;
+				}
+				PackedKmerTable rtrn = new PackedKmerTable(k, sorted);
+				int[] sortedCounts = new int[n];
+				for(int i = 0; i < keys.length; i++) {
+					if(counts[i] != 0) sortedCounts[rtrn.find(keys[i])] = counts[i];
+				}
+				rtrn.allocatePositions(sortedCounts);
+				return rtrn;
+			}
+			
+		}
+		
+	}
+	
+}
@@ -2,7 +2,6 @@ package search;
 
 import guttmanlab.core.pipeline.util.FastqParser;
 import guttmanlab.core.pipeline.util.FastqSequence;
-import guttmanlab.core.sequence.FastaFileIOImpl;
 import guttmanlab.core.sequence.Sequence;
 import guttmanlab.core.util.CommandLineParser;
 
@@ -10,12 +9,23 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import net.sf.samtools.BAMFileWriter;
 import net.sf.samtools.Cigar;
@@ -23,19 +33,20 @@ import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import util.SamtoolsUtils;
-
 /**
  * A query is considered to match a target if they share a perfect kmer match of the specified length
  * Case is ignored
  * Ns are treated as wildcards that everything matches
- * Reverse complement matches are NOT included
+ * Reverse complement matches are NOT included unless requested, in which case they are reported on the negative strand
  * Transcripts shorter than the specified kmer length are allowed to have shorter matches with queries
+ * Optionally, the target kmers can be stored in a 2-bit packed index (k <= 32) to save memory
  * @author prussell
  *
  */
@@ -96,8 +107,10 @@ public class PerfectKmerSearch {
 	private class IndividualKmerMatch {
 		
 		private Sequence query; // Query sequence
-		private KmerSubsequence queryKmer; // Kmer sequence and start position of kmer on query sequence
+		private int queryStart; // Start position of kmer on query sequence
+		private int k; // Kmer length
 		private SequencePos target; // Start position of match on target sequence
+		private boolean reverseComplement; // Whether the match is of the reverse complement of the query
 		
 		/**
 		 * @param queryName Query sequence name
@@ -105,22 +118,35 @@ public class PerfectKmerSearch {
 		 * @param target Target sequence and start position
 		 */
 		public IndividualKmerMatch(Sequence query, KmerSubsequence queryKmer, SequencePos target) {
+			this(query, queryKmer.getOrigSeqPos(), queryKmer.getSeq().length(), target, false);
+		}
+		
+		/**
+		 * @param query Query sequence
+		 * @param queryStart Start position of the matching kmer on the query, or on its reverse complement if reverseComplement is true
+		 * @param k Kmer length
+		 * @param target Target sequence and start position
+		 * @param reverseComplement Whether the match is of the reverse complement of the query
+		 */
+		public IndividualKmerMatch(Sequence query, int queryStart, int k, SequencePos target, boolean reverseComplement) {
 			this.query = query;
-			this.queryKmer = queryKmer;
+			this.queryStart = queryStart;
+			this.k = k;
 			this.target = target;
+			this.reverseComplement = reverseComplement;
 		}
 		
-		public int getK() {return queryKmer.getSeq().length();}
+		public int getK() {return k;}
 		
 		/**
 		 * @return Query/target pair object for this query and target
 		 */
 		public QueryTargetPair getQueryTargetPair() {
-			return new QueryTargetPair(query, target.getSequence());
+			return new QueryTargetPair(query, target.getSequence(), reverseComplement);
 		}
 		
 		public String toString() {
-			return query.getName() + ":" + queryKmer.getOrigSeqPos() + "->" + target.toString();
+			return query.getName() + ":" + queryStart + (reverseComplement ? "(-)" : "") + "->" + target.toString();
 		}
 		
 		public boolean equals(Object o) {
@@ -133,10 +159,11 @@ public class PerfectKmerSearch {
 		
 		public Sequence getQuery() {return query;}
 		public Sequence getTarget() {return target.getSequence();}
-		public int getQueryStartPos() {return queryKmer.getOrigSeqPos();}		
+		public int getQueryStartPos() {return queryStart;}		
 		public String getQueryName() {return query.getName();}
 		public int getTargetStartPos() {return target.getPos();}
 		public String getTargetName() {return target.getSequence().getName();}
+		public boolean isReverseComplement() {return reverseComplement;}
 		
 	}
 	
@@ -149,29 +176,33 @@ public class PerfectKmerSearch {
 		
 		private Sequence query;
 		private Sequence target;
+		private boolean reverseComplement; // Whether the pair is the reverse complement of the query and the target
 		
-		public QueryTargetPair(Sequence query, Sequence target) {
+		public QueryTargetPair(Sequence query, Sequence target, boolean reverseComplement) {
 			this.query = query;
 			this.target = target;
+			this.reverseComplement = reverseComplement;
 		}
 		
 		public Sequence getQuery() {return query;}
 		public Sequence getTarget() {return target;}
+		public boolean isReverseComplement() {return reverseComplement;}
 		
 		public String toString() {
-			return query.getName() + "->" + target.getName();
+			return query.getName() + (reverseComplement ? "(-)" : "") + "->" + target.getName();
 		}
 		
 		public boolean equals(Object o) {
 			if(!o.getClass().equals(getClass())) return false;
 			QueryTargetPair q = (QueryTargetPair)o;
-			return query.equals(q.getQuery()) && target.equals(q.getTarget());
+			return query.equals(q.getQuery()) && target.equals(q.getTarget()) && reverseComplement == q.isReverseComplement();
 		}
 		
 		public int hashCode() {
 			HashCodeBuilder h = new HashCodeBuilder();
 			h.append(query);
 			h.append(target);
+			h.append(reverseComplement);
 			return h.toHashCode();
 		}
 		
@@ -183,11 +214,12 @@ public class PerfectKmerSearch {
 	 * @author prussell
 	 *
 	 */
-	private class QueryTargetMatch {
+	class QueryTargetMatch {
 		
 		private SequencePos queryMatchStart;
 		private SequencePos targetMatchStart;
 		private int matchLength;
+		private boolean reverseComplement;
 		
 		/**
 		 * @param queryMatchStart Query sequence and start position of match
@@ -195,13 +227,26 @@ public class PerfectKmerSearch {
 		 * @param matchLength Match length
 		 */
 		public QueryTargetMatch(SequencePos queryMatchStart, SequencePos targetMatchStart, int matchLength) {
+			this(queryMatchStart, targetMatchStart, matchLength, false);
+		}
+		
+		/**
+		 * @param queryMatchStart Query sequence and start position of match, on the reverse complement of the query if reverseComplement is true
+		 * @param targetMatchStart Target sequence and start position of match
+		 * @param matchLength Match length
+		 * @param reverseComplement Whether the reverse complement of the query matches the target
+		 */
+		public QueryTargetMatch(SequencePos queryMatchStart, SequencePos targetMatchStart, int matchLength, boolean reverseComplement) {
 			this.queryMatchStart = queryMatchStart;
 			this.targetMatchStart = targetMatchStart;
 			this.matchLength = matchLength;
+			this.reverseComplement = reverseComplement;
 		}
 		
 		/**
 		 * Get this match as a SAM record
+		 * If the match is of the reverse complement of the query, the record is on the negative strand
+		 * and the read bases and soft clipping are those of the reverse complement
 		 * @return SAM record
 		 */
 		public SAMRecord toSAMRecord() {
@@ -231,7 +276,13 @@ public class PerfectKmerSearch {
 			rtrn.setReadPairedFlag(false);
 			rtrn.setReferenceName(targetMatchStart.getSequence().getName());
 			rtrn.setMappingQuality(255); // mapping quality unknown
-			rtrn.setReadBases(queryMatchStart.getSequence().getSequenceBases().getBytes());;
+			String queryBases = queryMatchStart.getSequence().getSequenceBases();
+			if(reverseComplement) {
+				rtrn.setReadNegativeStrandFlag(true);
+				rtrn.setReadBases(reverseComplement(queryBases).getBytes());
+			} else {
+				rtrn.setReadBases(queryBases.getBytes());
+			}
 			
 			return rtrn;
 		}
@@ -268,11 +319,104 @@ public class PerfectKmerSearch {
 	 * @param query Query sequence
 	 * @return The first match to each target
 	 */
-	private Collection<QueryTargetMatch> firstKmerMatchEachTarget(Sequence query) {
+	Collection<QueryTargetMatch> firstKmerMatchEachTarget(Sequence query) {
+		if(packedIndexTargets != null) {
+			validateSequence(query);
+			FirstMatchAccumulator accumulator = firstMatchAccumulators.get();
+			accumulator.clear();
+			addPackedKmerMatches(query, accumulator);
+			return accumulator.getMatches(query);
+		}
 		Map<QueryTargetPair, QueryTargetMatch> matches = firstKmerMatchEachQueryTargetPair(getIndividualKmerMatches(query));
 		return matches.values();
 	}
 	
+	/**
+	 * Keeps the "first" kmer match of a single query to each target in the packed or minimizer index, as individual matches are added
+	 * Matches are stored in primitive arrays indexed by target ID and strand, so no object is created per kmer match.
+	 * Each thread reuses one accumulator, which is cleared between queries by resetting only the entries that were used.
+	 * The result is the same as firstKmerMatch() applied to the matches in the order they are added.
+	 * @author prussell
+	 *
+	 */
+	private class FirstMatchAccumulator implements MinimizerKmerIndex.MatchCollector {
+		
+		private int[] queryStarts; // Smallest query start by key, or -1 if there is no match for the key
+		private int[] targetStarts; // Smallest target start by key
+		private int[] matchLengths; // Match length by key
+		private int[] keys; // Keys that have a match, in the order they were first added
+		private int numKeys; // Number of keys that have a match
+		
+		/**
+		 * @param numTargets Number of targets in the packed or minimizer index
+		 */
+		public FirstMatchAccumulator(int numTargets) {
+			queryStarts = new int[2 * numTargets];
+			targetStarts = new int[2 * numTargets];
+			matchLengths = new int[2 * numTargets];
+			keys = new int[16];
+			Arrays.fill(queryStarts, -1);
+		}
+		
+		/**
+		 * Add an individual kmer match
+		 * @param targetId Target ID in the packed or minimizer index
+		 * @param targetStart Start position on target
+		 * @param queryStart Start position on query, or on reverse complement of query if reverseComplement is true
+		 * @param k Kmer length
+		 * @param reverseComplement Whether the match is of the reverse complement of the query
+		 */
+		@Override
+		public void add(int targetId, int targetStart, int queryStart, int k, boolean reverseComplement) {
+			int key = 2 * targetId + (reverseComplement ? 1 : 0);
+			if(queryStarts[key] < 0) {
+				if(numKeys == keys.length) {
+					keys = Arrays.copyOf(keys, 2 * numKeys);
+				}
+				keys[numKeys++] = key;
+				queryStarts[key] = queryStart;
+				targetStarts[key] = targetStart;
+				matchLengths[key] = k;
+				return;
+			}
+			if(queryStart < queryStarts[key]) {
+				queryStarts[key] = queryStart;
+				matchLengths[key] = k;
+			}
+			if(targetStart < targetStarts[key]) {
+				targetStarts[key] = targetStart;
+				matchLengths[key] = k;
+			}
+		}
+		
+		/**
+		 * Get the first match to each target
+		 * @param query Query sequence
+		 * @return The first match to each target and strand, in the order the targets were first matched
+		 */
+		public Collection<QueryTargetMatch> getMatches(Sequence query) {
+			Collection<QueryTargetMatch> rtrn = new ArrayList<QueryTargetMatch>(numKeys);
+			for(int i = 0; i < numKeys; i++) {
+				int key = keys[i];
+				SequencePos queryMatchPos = new SequencePos(query, queryStarts[key]);
+				SequencePos targetMatchPos = new SequencePos(packedIndexTargets[key / 2], targetStarts[key]);
+				rtrn.add(new QueryTargetMatch(queryMatchPos, targetMatchPos, matchLengths[key], key % 2 == 1));
+			}
+			return rtrn;
+		}
+		
+		/**
+		 * Remove all matches
+		 */
+		public void clear() {
+			for(int i = 0; i < numKeys; i++) {
+				queryStarts[keys[i]] = -1;
+			}
+			numKeys = 0;
+		}
+		
+	}
+	
 	/**
 	 * Get the first kmer match of this query to each of its targets as SAM records
 	 * @param record Query read
@@ -289,8 +433,16 @@ public class PerfectKmerSearch {
 	 * @param query Query sequence
 	 * @return The first match to each target as SAM records
 	 */
-	private Collection<SAMRecord> samRecordFirstKmerMatchEachTarget(Sequence query) {
-		Collection<QueryTargetMatch> matches = firstKmerMatchEachTarget(query);
+	Collection<SAMRecord> samRecordFirstKmerMatchEachTarget(Sequence query) {
+		return samRecords(firstKmerMatchEachTarget(query));
+	}
+	
+	/**
+	 * Get matches as SAM records
+	 * @param matches Query/target matches
+	 * @return The matches as SAM records
+	 */
+	Collection<SAMRecord> samRecords(Collection<QueryTargetMatch> matches) {
 		Collection<SAMRecord> rtrn = new ArrayList<SAMRecord>();
 		for(QueryTargetMatch match : matches) {
 			rtrn.add(match.toSAMRecord());
@@ -298,6 +450,78 @@ public class PerfectKmerSearch {
 		return rtrn;
 	}
 	
+	/**
+	 * Counts of reads in each mapping category
+	 * @author prussell
+	 *
+	 */
+	private class MatchCounts {
+		
+		private int numTooShort = 0;
+		private int numIllegalChar = 0;
+		private int numUniquelyMapped = 0;
+		private int numMultiMapped = 0;
+		private int numUnmapped = 0;
+		private int numTooManyNs = 0;
+		
+		/**
+		 * Add counts from another object to this one
+		 * @param other Other counts
+		 */
+		public void add(MatchCounts other) {
+			numTooShort += other.numTooShort;
+			numIllegalChar += other.numIllegalChar;
+			numUniquelyMapped += other.numUniquelyMapped;
+			numMultiMapped += other.numMultiMapped;
+			numUnmapped += other.numUnmapped;
+			numTooManyNs += other.numTooManyNs;
+		}
+		
+		/**
+		 * Write the counts to the log
+		 */
+		public void logResults() {
+			logger.info("");
+			logger.info("RESULTS");
+			logger.info("Reads mapped uniquely:\t" + numUniquelyMapped);
+			logger.info("Reads mapped to multiple targets:\t" + numMultiMapped);
+			logger.info("Reads unmapped:\t" + numUnmapped);
+			if(numTooShort > 0) {
+				logger.warn("Reads skipped because they were too short:\t" + numTooShort);
+			}
+			if(numIllegalChar > 0) {
+				logger.warn("Reads skipped because they contain an illegal character:\t" + numIllegalChar);
+			}
+			if(numTooManyNs > 0) {
+				logger.warn("Reads skipped because they contain > " + MAX_PCT_N + " N's:\t" + numTooManyNs);
+			}
+			logger.info("");
+		}
+		
+	}
+	
+	/**
+	 * Get the first kmer match of a read to each of its targets as SAM records, and count the read in the appropriate category
+	 * @param query Query read
+	 * @param alignments Collection to add the SAM records to
+	 * @param counts Counts to update
+	 */
+	private void matchRead(FastqSequence query, Collection<SAMRecord> alignments, MatchCounts counts) {
+		try {
+			Collection<SAMRecord> queryAlignments = samRecordFirstKmerMatchEachTarget(query);
+			if(queryAlignments.size() == 0) counts.numUnmapped++;
+			if(queryAlignments.size() == 1) counts.numUniquelyMapped++;
+			if(queryAlignments.size() > 1) counts.numMultiMapped++;
+			alignments.addAll(queryAlignments);
+		} catch(SequenceTooShortException e) {
+			counts.numTooShort++;
+		} catch(IllegalCharacterException e) {
+			counts.numIllegalChar++;
+		} catch(TooManyNsException e) {
+			counts.numTooManyNs++;
+		}
+	}
+	
 	/**
 	 * Iterate through fastq file and for each query and target, write first kmer match to a bam file
 	 * @param queryFastq Query fastq file
@@ -314,55 +538,190 @@ public class PerfectKmerSearch {
 		writer.setHeader(samHeader);
 		FastqParser reader = new FastqParser();
 		reader.start(new File(queryFastq));
-		int numTooShort = 0;
-		int numIllegalChar = 0;
-		int numUniquelyMapped = 0;
-		int numMultiMapped = 0;
-		int numUnmapped = 0;
+		MatchCounts counts = new MatchCounts();
 		int numDone = 0;
-		int numTooManyNs = 0;
-		while(reader.hasNext()) {
-			FastqSequence query = reader.next();
-			numDone++;
-			if(numDone % 1000000 == 0) {
-				logger.info("Finished " + numDone + " reads");
-			}
-			try {
-				Collection<SAMRecord> alignments = samRecordFirstKmerMatchEachTarget(query);
-				if(alignments.size() == 0) numUnmapped++;
-				if(alignments.size() == 1) numUniquelyMapped++;
-				if(alignments.size() > 1) numMultiMapped++;
+		Collection<SAMRecord> alignments = new ArrayList<SAMRecord>();
+		try {
+			while(reader.hasNext()) {
+				FastqSequence query = reader.next();
+				numDone++;
+				if(numDone % 1000000 == 0) {
+					logger.info("Finished " + numDone + " reads");
+				}
+				alignments.clear();
+				matchRead(query, alignments, counts);
 				for(SAMRecord alignment : alignments) {
 					writer.addAlignment(alignment);
 				}
-			} catch(SequenceTooShortException e) {
-				numTooShort++;
-			} catch(IllegalCharacterException e) {
-				numIllegalChar++;
-			} catch(TooManyNsException e) {
-				numTooManyNs++;
 			}
+		} finally {
+			reader.close();
 		}
-		logger.info("");
-		logger.info("RESULTS");
-		logger.info("Reads mapped uniquely:\t" + numUniquelyMapped);
-		logger.info("Reads mapped to multiple targets:\t" + numMultiMapped);
-		logger.info("Reads unmapped:\t" + numUnmapped);
-		if(numTooShort > 0) {
-			logger.warn("Reads skipped because they were too short:\t" + numTooShort);
-		}
-		if(numIllegalChar > 0) {
-			logger.warn("Reads skipped because they contain an illegal character:\t" + numIllegalChar);
+		counts.logResults();
+		writer.close();
+		
+	}
+	
+	/**
+	 * The SAM records and counts for a batch of reads
+	 * @author prussell
+	 *
+	 */
+	private class MatchBatch {
+		
+		private int numReads;
+		private Collection<SAMRecord> alignments = new ArrayList<SAMRecord>();
+		private MatchCounts counts = new MatchCounts();
+		
+		/**
+		 * Match each read in the batch
+		 * @param reads Query reads
+		 */
+		public MatchBatch(List<FastqSequence> reads) {
+			numReads = reads.size();
+			for(FastqSequence read : reads) {
+				matchRead(read, alignments, counts);
+			}
 		}
-		if(numTooManyNs > 0) {
-			logger.warn("Reads skipped because they contain > " + MAX_PCT_N + " N's:\t" + numTooManyNs);
+		
+	}
+	
+	/**
+	 * Iterate through fastq file and for each query and target, write first kmer match to a bam file
+	 * One thread reads batches of reads, a pool of worker threads matches the batches against the index,
+	 * and the calling thread writes the SAM records in the same order as the reads in the fastq file
+	 * @param queryFastq Query fastq file
+	 * @param outputBam Bam file to write
+	 * @param numThreads Number of worker threads
+	 * @throws IOException
+	 */
+	private void writeFirstKmerMatchEachTarget(final String queryFastq, String outputBam, int numThreads) throws IOException {
+		
+		if(numThreads <= 1) {
+			writeFirstKmerMatchEachTarget(queryFastq, outputBam);
+			return;
 		}
+		
 		logger.info("");
-		reader.close();
-		writer.close();
+		logger.info("Writing matches for reads in " + queryFastq + " to " + outputBam + " with " + numThreads + " threads...");
+		
+		// Daemon threads so a failure can never leave the JVM waiting on them
+		final ExecutorService workers = Executors.newFixedThreadPool(numThreads, DAEMON_THREADS);
+		ExecutorService readerThread = Executors.newSingleThreadExecutor(DAEMON_THREADS);
+		// Batches in fastq order; bounded so the reader can't get too far ahead of the writer
+		final BlockingQueue<Future<MatchBatch>> pending = new ArrayBlockingQueue<Future<MatchBatch>>(2 * numThreads);
+		final FutureTask<MatchBatch> endOfInput = new FutureTask<MatchBatch>(new Callable<MatchBatch>() {
+			@Override
+			public MatchBatch call() {
+				return null;
+			}
+		});
+		
+		Future<Integer> readerResult = readerThread.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				int numRead = 0;
+				boolean finished = false;
+				try {
+					FastqParser reader = new FastqParser();
+					reader.start(new File(queryFastq));
+					try {
+						List<FastqSequence> batch = new ArrayList<FastqSequence>(READ_BATCH_SIZE);
+						while(reader.hasNext()) {
+							batch.add(reader.next());
+							numRead++;
+							if(batch.size() == READ_BATCH_SIZE) {
+								pending.put(workers.submit(matchBatchTask(batch)));
+								batch = new ArrayList<FastqSequence>(READ_BATCH_SIZE);
+							}
+						}
+						if(!batch.isEmpty()) {
+							pending.put(workers.submit(matchBatchTask(batch)));
+						}
+					} finally {
+						// Close the fastq file even if reading or submitting a batch fails
+						reader.close();
+					}
+					finished = true;
+				} finally {
+					if(finished) {
+						pending.put(endOfInput);
+					} else {
+						// The writer may have stopped taking; make room so the end marker never blocks
+						cancelAll(pending);
+						pending.offer(endOfInput);
+					}
+				}
+				return Integer.valueOf(numRead);
+			}
+		});
+		
+		BAMFileWriter writer = new BAMFileWriter(new File(outputBam));
+		writer.setSortOrder(SAMFileHeader.SortOrder.unsorted, false);
+		writer.setHeader(samHeader);
+		MatchCounts counts = new MatchCounts();
+		int numDone = 0;
+		try {
+			while(true) {
+				Future<MatchBatch> next = pending.take();
+				if(next == endOfInput) break;
+				MatchBatch batch = next.get();
+				for(SAMRecord alignment : batch.alignments) {
+					writer.addAlignment(alignment);
+				}
+				counts.add(batch.counts);
+				int prevDone = numDone;
+				numDone += batch.numReads;
+				if(numDone / 1000000 > prevDone / 1000000) {
+					logger.info("Finished " + numDone + " reads");
+				}
+			}
+			// Rethrow any exception from the reader
+			readerResult.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while writing matches", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			// Unblock the reader if it is waiting on a full queue
+			cancelAll(pending);
+			workers.shutdownNow();
+			readerThread.shutdownNow();
+			writer.close();
+		}
+		counts.logResults();
 		
 	}
 	
+	/**
+	 * Cancel and remove all batches waiting in the queue
+	 * @param pending Queue of pending batches
+	 */
+	private static void cancelAll(BlockingQueue<Future<MatchBatch>> pending) {
+		List<Future<MatchBatch>> dropped = new ArrayList<Future<MatchBatch>>();
+		pending.drainTo(dropped);
+		for(Future<MatchBatch> batch : dropped) {
+			batch.cancel(true);
+		}
+	}
+	
+	/**
+	 * @param reads Batch of query reads
+	 * @return Task that matches the batch
+	 */
+	private Callable<MatchBatch> matchBatchTask(final List<FastqSequence> reads) {
+		return new Callable<MatchBatch>() {
+			@Override
+			public MatchBatch call() {
+				return new MatchBatch(reads);
+			}
+		};
+	}
+	
 	/**
 	 * Get the "first" kmer match between a query and a target, out of a set of multiple kmer matches between these sequences
 	 * @param kmerMatches Set of kmer matches all with same query and target
@@ -381,6 +740,7 @@ public class PerfectKmerSearch {
 		int queryStart = match.getQueryStartPos();
 		int targetStart = match.getTargetStartPos();
 		int matchLen = match.getK();
+		boolean reverseComplement = match.isReverseComplement();
 		while(iter.hasNext()) {
 			IndividualKmerMatch next = iter.next();
 			String nextQueryName = next.getQueryName();
@@ -391,6 +751,9 @@ public class PerfectKmerSearch {
 			if(!nextTargetName.equals(targetName)) {
 				throw new IllegalArgumentException("Must have only one target: " + targetName + ", " + nextTargetName);
 			}
+			if(next.isReverseComplement() != reverseComplement) {
+				throw new IllegalArgumentException("Must have only one strand: " + queryName + ", " + targetName);
+			}
 			int nextQueryStart = next.getQueryStartPos();
 			if(nextQueryStart < queryStart) {
 				matchLen = next.getK();
@@ -404,7 +767,7 @@ public class PerfectKmerSearch {
 		}
 		SequencePos queryMatchPos = new SequencePos(query, queryStart);
 		SequencePos targetMatchPos = new SequencePos(target, targetStart);
-		return new QueryTargetMatch(queryMatchPos, targetMatchPos, matchLen);
+		return new QueryTargetMatch(queryMatchPos, targetMatchPos, matchLen, reverseComplement);
 	}
 	
 	/**
@@ -412,7 +775,7 @@ public class PerfectKmerSearch {
 	 * @author prussell
 	 *
 	 */
-	private class KmerSubsequence {
+	private static class KmerSubsequence {
 		
 		private String seq; // The kmer sequence
 		private int origSeqPos; // Start position of the kmer on the original sequence
@@ -449,9 +812,20 @@ public class PerfectKmerSearch {
 	private int mink; // Minimum kmer length (set to shortest target length when making kmer index for targets, or to maxk, whichever is smaller)
 	private int maxk; // Maximum kmer length to search for
 	private Map<String, Collection<SequencePos>> targetKmers; // Key is kmer; value is collection of sequences with kmer and the match position
+	private PackedKmerIndex packedIndex; // Packed kmer index, used instead of targetKmers if not null
+	private MinimizerKmerIndex minimizerIndex; // Sparse minimizer index, used instead of targetKmers if not null
+	private Sequence[] packedIndexTargets; // Name-only target sequences by target ID of the packed or minimizer index
+	private boolean matchReverseComplement = false; // Also match the reverse complement of each query
+	private ThreadLocal<FirstMatchAccumulator> firstMatchAccumulators = new ThreadLocal<FirstMatchAccumulator>() { // Reusable accumulator for packed index matches on each thread
+		@Override
+		protected FirstMatchAccumulator initialValue() {
+			return new FirstMatchAccumulator(packedIndexTargets.length);
+		}
+	};
 	private static Logger logger = Logger.getLogger(PerfectKmerSearch.class.getName());
 	private SAMFileHeader samHeader; // SAM header for target sequences
-	private static double MAX_PCT_N = 0.05; // Max percentage of N's in reads
+	static final double DEFAULT_MAX_PCT_N = 0.05;
+	private static double MAX_PCT_N = DEFAULT_MAX_PCT_N; // Max percentage of N's in reads
 	
 	/**
 	 * The legal characters converted to upper case, not including N
@@ -462,14 +836,134 @@ public class PerfectKmerSearch {
 	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
 	 * @param fasta Fasta file of target sequences
 	 */
-	public PerfectKmerSearch(int k, String fasta) {
+	public PerfectKmerSearch(int k, String fasta) throws IOException {
+		this(k, fasta, false);
+	}
+	
+	/**
+	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts.
+	 * @param fasta Fasta file of target sequences
+	 * @param usePackedIndex Store target kmers in a 2-bit packed index instead of a map of strings. Requires k <= 32.
+	 * @throws IOException
+	 */
+	public PerfectKmerSearch(int k, String fasta, boolean usePackedIndex) throws IOException {
+		if(usePackedIndex && k > PackedKmerIndex.MAX_K) {
+			throw new IllegalArgumentException("Kmer length must be <= " + PackedKmerIndex.MAX_K + " to use packed index: " + k);
+		}
 		this.maxk = k;
-		setMinK(fasta);
-		createIndex(fasta);
-		samHeader = SamtoolsUtils.createSamHeader(fasta);
+		if(usePackedIndex) {
+			createPackedIndex(fasta);
+		} else {
+			createIndex(fasta);
+		}
+	}
+	
+	/**
+	 * Use a sparse minimizer index instead of a full kmer index
+	 * Matches are the same as with the full index
+	 * @param k Length of kmers to match. Shorter matches are allowed for shorter target transcripts. Must be <= 32.
+	 * @param fasta Fasta file of target sequences
+	 * @param minimizerLength Length of minimizers to store for each target kmer
+	 * @param minimizerWindow Number of m-mers at the start of each kmer to choose the minimizer from, or 0 to use every m-mer in the kmer.
+	 * Smaller windows store more minimizers but give fewer candidate matches to verify.
+	 * @throws IOException
+	 */
+	public PerfectKmerSearch(int k, String fasta, int minimizerLength, int minimizerWindow) throws IOException {
+		if(k > PackedKmerIndex.MAX_K) {
+			throw new IllegalArgumentException("Kmer length must be <= " + PackedKmerIndex.MAX_K + " to use minimizer index: " + k);
+		}
+		this.maxk = k;
+		createMinimizerIndex(fasta, minimizerLength, minimizerWindow);
+	}
+	
+	/**
+	 * @param index Packed kmer index that has already been built
+	 */
+	private PerfectKmerSearch(PackedKmerIndex index) {
+		maxk = index.getMaxK();
+		mink = maxk;
+		for(int i = 0; i < index.getNumTargets(); i++) {
+			mink = Math.min(mink, index.getTargetLength(i));
+		}
+		setPackedIndex(index);
+		samHeader = createSamHeader(index);
+	}
+	
+	/**
+	 * Load a packed kmer index that was written with writePackedIndex()
+	 * The index file is memory mapped, so the target fasta does not need to be read
+	 * @param indexFile Packed index file
+	 * @return Search object using the index
+	 * @throws IOException
+	 */
+	public static PerfectKmerSearch fromPackedIndexFile(String indexFile) throws IOException {
+		logger.info("");
+		logger.info("Loading packed index from " + indexFile + "...");
+		PerfectKmerSearch rtrn = new PerfectKmerSearch(PackedKmerIndex.mapFromFile(indexFile));
+		logger.info("Done loading packed index. Minimum k is " + rtrn.mink + ". Maximum k is " + rtrn.maxk + ".");
+		return rtrn;
+	}
+	
+	/**
+	 * Write the packed kmer index to a binary file that can be loaded with fromPackedIndexFile()
+	 * @param outFile File to write
+	 * @throws IOException
+	 */
+	public void writePackedIndex(String outFile) throws IOException {
+		if(packedIndex == null) {
+			throw new IllegalStateException("Can only write packed index");
+		}
+		logger.info("");
+		logger.info("Writing packed index to " + outFile + "...");
+		packedIndex.writeToFile(outFile);
+		logger.info("Done writing packed index.");
+	}
+	
+	/**
+	 * Make a SAM header with the targets in a packed index as the reference sequences
+	 * @param index Packed index
+	 * @return SAM header
+	 */
+	private static SAMFileHeader createSamHeader(PackedKmerIndex index) {
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		for(int i = 0; i < index.getNumTargets(); i++) {
+			dict.addSequence(new SAMSequenceRecord(index.getTargetName(i), index.getTargetLength(i)));
+		}
+		SAMFileHeader rtrn = new SAMFileHeader();
+		rtrn.setSequenceDictionary(dict);
+		return rtrn;
 	}
 
 	
+	/**
+	 * @param reverseComplement Whether to also match the reverse complement of each query. Matches are reported on the negative strand.
+	 */
+	public void setMatchReverseComplement(boolean reverseComplement) {
+		matchReverseComplement = reverseComplement;
+	}
+	
+	/**
+	 * Get the reverse complement of a sequence, converted to upper case
+	 * Ns and any other characters are kept as is
+	 * @param sequence Sequence
+	 * @return Upper case reverse complement
+	 */
+	private static String reverseComplement(String sequence) {
+		int len = sequence.length();
+		char[] rtrn = new char[len];
+		for(int i = 0; i < len; i++) {
+			char c = Character.toUpperCase(sequence.charAt(len - 1 - i));
+			switch(c) {
+			case 'A': rtrn[i] = 'T'; break;
+			case 'C': rtrn[i] = 'G'; break;
+			case 'G': rtrn[i] = 'C'; break;
+			case 'T': rtrn[i] = 'A'; break;
+			default: rtrn[i] = c;
+			}
+		}
+		return new String(rtrn);
+	}
+	
 	/**
 	 * Check if the char (converted to upper case) is in the alphabet or is N
 	 * @param c Char to check
@@ -506,6 +1000,17 @@ public class PerfectKmerSearch {
 	}
 	
 	private static final int MAX_LEN_TO_CHECK_N_CONTENT = 5000;
+	private static final int MAX_NS_TO_EXPAND = 1; // Query kmers with more Ns than this are matched by seed and mask instead of expanding Ns
+	private static final int READ_BATCH_SIZE = 10000; // Number of reads per batch when matching on multiple threads
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = defaultFactory.newThread(r);
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
 	
 	/**
 	 * Check that a sequence is valid
@@ -544,60 +1049,123 @@ public class PerfectKmerSearch {
 	}
 	
 	/**
-	 * Set minimum kmer length field as the length of the shortest sequence in a fasta file
-	 * @param fasta Fasta file
+	 * Read target sequences from a fasta file one at a time
+	 * The minimum kmer length and the SAM header are computed as the targets are read,
+	 * and each target is passed to the visitor, so the fasta file is read only once
+	 * and the full collection of target sequences is never held in memory
+	 * @param fasta Fasta file of target sequences
+	 * @param visitor Receives each target sequence
+	 * @throws IOException
 	 */
-	private void setMinK(String fasta) {
-		Collection<Sequence> targets = new FastaFileIOImpl().readFromFile(fasta);
+	private void readTargets(String fasta, TargetVisitor visitor) throws IOException {
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
 		mink = maxk;
-		for(Sequence target : targets) {
+		FastaStreamReader reader = new FastaStreamReader(fasta);
+		while(reader.hasNext()) {
+			Sequence target = reader.next();
 			int len = target.getLength();
 			if(len < mink) {mink = len;}
+			dict.addSequence(new SAMSequenceRecord(target.getName(), len));
+			validateSequence(target);
+			visitor.visit(target);
 		}
+		samHeader = new SAMFileHeader();
+		samHeader.setSequenceDictionary(dict);
+	}
+	
+	/**
+	 * Receives target sequences as they are read
+	 */
+	private interface TargetVisitor {
+		public void visit(Sequence target);
 	}
 	
-
 	/**
 	 * Store kmers and their matches to target sequences
+	 * Matches refer to name-only copies of the targets so the target bases are not kept
 	 * @param fasta Fasta file of target sequences
+	 * @throws IOException
 	 */
-	private void createIndex(String fasta) {
+	private void createIndex(String fasta) throws IOException {
 		logger.info("");
 		logger.info("Creating index for target fasta " + fasta + "...");
 		targetKmers = new HashMap<String, Collection<SequencePos>>();
-		Collection<Sequence> targets = new FastaFileIOImpl().readFromFile(fasta);
-		int numSkipped = 0;
-		for(Sequence target : targets) {
-			try {
-				validateSequence(target);
-			} catch(SequenceTooShortException e) {
-				logger.warn("Caught exception, skipping target sequence:\t" + e.getMessage());
-				numSkipped++;
-				continue;
-			}
-			int len = target.getLength();
-			if(len < mink) {
-				throw new IllegalStateException("Target sequence length (" + len + ") is shorter than min kmer length (" + mink + "): " + target.getName());
-			}
-			/**
-			 *  Only index a single length of kmer
-			 *  The kmer length is maxk or the transcript length, whichever is shorter
-			 */
-			int k = Math.min(len, maxk);
-			for(KmerSubsequence kmer : getKmers(target.getSequenceBases(), k, k)) {
-				String kmerSeq = kmer.getSeq();
-				if(!targetKmers.containsKey(kmerSeq)) {
-					targetKmers.put(kmerSeq, new TreeSet<SequencePos>());
+		readTargets(fasta, new TargetVisitor() {
+			@Override
+			public void visit(Sequence target) {
+				Sequence targetName = new Sequence(target.getName(), "");
+				/**
+				 *  Only index a single length of kmer
+				 *  The kmer length is maxk or the transcript length, whichever is shorter
+				 */
+				int k = Math.min(target.getLength(), maxk);
+				for(KmerSubsequence kmer : getKmers(target.getSequenceBases(), k, k)) {
+					String kmerSeq = kmer.getSeq();
+					if(!targetKmers.containsKey(kmerSeq)) {
+						targetKmers.put(kmerSeq, new TreeSet<SequencePos>());
+					}
+					targetKmers.get(kmerSeq).add(new SequencePos(targetName, kmer.getOrigSeqPos()));
 				}
-				targetKmers.get(kmerSeq).add(new SequencePos(target, kmer.getOrigSeqPos()));
 			}
+		});
+		logger.info("Done creating index. Minimum k is " + mink + ". Maximum k is " + maxk + ".");
+	}
+	
+	/**
+	 * Store kmers and their matches to target sequences in a packed index
+	 * Targets are collected one byte per base while the fasta file is read, then indexed
+	 * @param fasta Fasta file of target sequences
+	 * @throws IOException
+	 */
+	private void createPackedIndex(String fasta) throws IOException {
+		logger.info("");
+		logger.info("Creating packed index for target fasta " + fasta + "...");
+		final PackedKmerIndex.TargetStore targets = new PackedKmerIndex.TargetStore();
+		readTargets(fasta, new TargetVisitor() {
+			@Override
+			public void visit(Sequence target) {
+				targets.add(target);
+			}
+		});
+		setPackedIndex(new PackedKmerIndex(targets, maxk));
+		logger.info("Done creating packed index with " + packedIndex.getNumKmers() + " distinct kmers and " + packedIndex.getNumPositions() + " target positions. Minimum k is " + mink + ". Maximum k is " + maxk + ".");
+	}
+	
+	/**
+	 * Store minimizers of target kmers and their positions on targets in a sparse index
+	 * @param fasta Fasta file of target sequences
+	 * @param minimizerLength Minimizer length
+	 * @param minimizerWindow Number of m-mers per kmer to choose the minimizer from, or 0 for every m-mer in the kmer
+	 * @throws IOException
+	 */
+	private void createMinimizerIndex(String fasta, int minimizerLength, int minimizerWindow) throws IOException {
+		logger.info("");
+		logger.info("Creating minimizer index for target fasta " + fasta + " with minimizer length " + minimizerLength + "...");
+		final PackedKmerIndex.TargetStore targets = new PackedKmerIndex.TargetStore();
+		readTargets(fasta, new TargetVisitor() {
+			@Override
+			public void visit(Sequence target) {
+				targets.add(target);
+			}
+		});
+		minimizerIndex = new MinimizerKmerIndex(targets, maxk, minimizerLength, minimizerWindow);
+		packedIndexTargets = new Sequence[minimizerIndex.getNumTargets()];
+		for(int i = 0; i < packedIndexTargets.length; i++) {
+			packedIndexTargets[i] = new Sequence(minimizerIndex.getTargetName(i), "");
 		}
-		if(numSkipped > 0) {
-			logger.warn("");
-			logger.warn("Skipped " + numSkipped + " target sequences that did not validate");
-			logger.warn("");
+		logger.info("Done creating minimizer index with " + minimizerIndex.getNumMinimizerPositions() + " minimizer positions and " + minimizerIndex.getNumWildcardPositions() + " positions of target kmers with Ns. Minimum k is " + mink + ". Maximum k is " + maxk + ".");
+	}
+	
+	/**
+	 * Set the packed index and create name-only target sequences for its target IDs
+	 * @param index Packed index
+	 */
+	private void setPackedIndex(PackedKmerIndex index) {
+		packedIndex = index;
+		packedIndexTargets = new Sequence[packedIndex.getNumTargets()];
+		for(int i = 0; i < packedIndexTargets.length; i++) {
+			packedIndexTargets[i] = new Sequence(packedIndex.getTargetName(i), "");
 		}
-		logger.info("Done creating index. Minimum k is " + mink + ". Maximum k is " + maxk + ".");
 	}
 	
 	/**
@@ -605,7 +1173,7 @@ public class PerfectKmerSearch {
 	 * @param sequence Sequence to expand
 	 * @return Collection of versions with all possible values of N's taken from the alphabet
 	 */
-	private Collection<String> expandNs(String sequence) {
+	static Collection<String> expandNs(String sequence) {
 		for(int i = 0; i < sequence.length(); i++) {
 			if(Character.toUpperCase(sequence.charAt(i)) == 'N') {
 				Collection<String> expanded = new HashSet<String>();
@@ -628,7 +1196,7 @@ public class PerfectKmerSearch {
 	 * @param sequences Sequences to expand
 	 * @return Collection of versions with all possible values of N's taken from the alphabet
 	 */
-	private Collection<String> expandNs(Collection<String> sequences) {
+	private static Collection<String> expandNs(Collection<String> sequences) {
 		Collection<String> rtrn = new HashSet<String>();
 		for(String seq : sequences) {
 			rtrn.addAll(expandNs(seq));
@@ -646,7 +1214,7 @@ public class PerfectKmerSearch {
 	 * @param maxK Maximum kmer length to get
 	 * @return Set of kmers converted to upper case with Ns expanded to all possible values
 	 */
-	private Collection<KmerSubsequence> getKmers(String sequence, int minK, int maxK) {
+	static Collection<KmerSubsequence> getKmers(String sequence, int minK, int maxK) {
 		int len = sequence.length();
 		Collection<KmerSubsequence> rtrn = new ArrayList<KmerSubsequence>();
 		for(int i = minK; i <= Math.min(len,maxK); i++) {
@@ -658,7 +1226,7 @@ public class PerfectKmerSearch {
 			for(int p = i; p < len; p++) {
 				builder.deleteCharAt(0);
 				builder.append(sequence.charAt(p));
-				Collection<String> expandedNs2 = expandNs(expandNs(builder.toString().toUpperCase()));
+				Collection<String> expandedNs2 = expandNs(builder.toString().toUpperCase());
 				for(String s : expandedNs2) {
 					rtrn.add(new KmerSubsequence(s, p - i + 1));
 				}
@@ -673,7 +1241,7 @@ public class PerfectKmerSearch {
 	 * @param query Query sequence
 	 * @return Set of perfect kmer matches
 	 */
-	private Collection<IndividualKmerMatch> getIndividualKmerMatches(Sequence query) {
+	Collection<IndividualKmerMatch> getIndividualKmerMatches(Sequence query) {
 		validateSequence(query);
 		Collection<KmerSubsequence> queryKmers = getKmers(query.getSequenceBases(), mink, maxk);
 		Collection<IndividualKmerMatch> rtrn = new HashSet<IndividualKmerMatch>();
@@ -685,17 +1253,176 @@ public class PerfectKmerSearch {
 				rtrn.add(match);
 			}
 		}
+		if(matchReverseComplement) {
+			Collection<KmerSubsequence> rcKmers = getKmers(reverseComplement(query.getSequenceBases()), mink, maxk);
+			for(KmerSubsequence rcKmer : rcKmers) {
+				String kmerSeq = rcKmer.getSeq();
+				if(!targetKmers.containsKey(kmerSeq)) {continue;}
+				for(SequencePos sp : targetKmers.get(kmerSeq)) {
+					rtrn.add(new IndividualKmerMatch(query, rcKmer.getOrigSeqPos(), kmerSeq.length(), sp, true));
+				}
+			}
+		}
 		return rtrn;
 	}
 	
 	/**
-	 * Write kmer index out to a file
+	 * Add all kmer matches of this query to the targets in the packed or minimizer index to an accumulator
+	 * Kmers are read from the query bases with a rolling code, so no strings are created per kmer
+	 * Clients should call validateSequence() first
+	 * @param query Query sequence
+	 * @param matches Accumulator to add matches to
+	 */
+	private void addPackedKmerMatches(Sequence query, FirstMatchAccumulator matches) {
+		byte[] bases = query.getSequenceBases().getBytes();
+		for(int k = mink; k <= Math.min(bases.length, maxk); k++) {
+			PackedKmerIndex.PackedKmerTable table; // Full table, or table of target kmers with Ns for minimizer index
+			if(minimizerIndex != null) {
+				if(!minimizerIndex.hasKmerLength(k)) {continue;}
+				table = minimizerIndex.getWildcardTable(k);
+			} else {
+				table = packedIndex.getTable(k);
+				if(table == null) {continue;}
+			}
+			RollingKmerIterator iter = new RollingKmerIterator(bases, k);
+			while(iter.next()) {
+				addPackedMatches(iter.getPosition(), k, table, iter.getCode(), iter.getWildcards(), false, matches);
+				if(matchReverseComplement) {
+					// Start position on the reverse complement of the query
+					int rcStart = bases.length - k - iter.getPosition();
+					addPackedMatches(rcStart, k, table, iter.getReverseComplementCode(), iter.getReverseComplementWildcards(), true, matches);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Add matches of a single query kmer to targets in the full table and the minimizer index, whichever are present
+	 * @param queryStart Start position of kmer on query, or on reverse complement of query if reverseComplement is true
+	 * @param k Kmer length
+	 * @param table Table for the kmer length, or null
+	 * @param code Packed kmer with Ns encoded as A
+	 * @param wildcards Positions of Ns as returned by RollingKmerIterator
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query
+	 * @param matches Accumulator to add matches to
+	 */
+	private void addPackedMatches(int queryStart, int k, PackedKmerIndex.PackedKmerTable table, long code, long wildcards, boolean reverseComplement, FirstMatchAccumulator matches) {
+		if(table != null) {
+			addPackedMatches(queryStart, table, code, wildcards, reverseComplement, matches);
+		}
+		if(minimizerIndex != null) {
+			minimizerIndex.addMatches(k, code, wildcards, queryStart, reverseComplement, matches);
+		}
+	}
+	
+	/**
+	 * Add matches of a single query kmer to targets in the packed index
+	 * @param queryStart Start position of kmer on query, or on reverse complement of query if reverseComplement is true
+	 * @param table Table for the kmer length
+	 * @param code Packed kmer with Ns encoded as A
+	 * @param wildcards Positions of Ns as returned by RollingKmerIterator
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query
+	 * @param matches Accumulator to add matches to
+	 */
+	private void addPackedMatches(int queryStart, PackedKmerIndex.PackedKmerTable table, long code, long wildcards, boolean reverseComplement, FirstMatchAccumulator matches) {
+		if(wildcards == 0) {
+			addPackedMatches(queryStart, table, table.find(code), reverseComplement, matches);
+			return;
+		}
+		// Ns in query match every base
+		if(Long.bitCount(wildcards) <= MAX_NS_TO_EXPAND) {
+			int numExpansions = RollingKmerIterator.numExpansions(wildcards);
+			for(int i = 0; i < numExpansions; i++) {
+				addPackedMatches(queryStart, table, table.find(RollingKmerIterator.expandWildcards(code, wildcards, i)), reverseComplement, matches);
+			}
+		} else {
+			addPackedWildcardMatches(queryStart, table, code, wildcards, reverseComplement, matches);
+		}
+	}
+	
+	/**
+	 * Add matches of a query kmer containing Ns to targets in the packed index, without expanding any N
+	 * The seed is the longest N-free prefix of any rotation of the kmer that the table can search (see PackedKmerTable.getNumRotations()).
+	 * The seed is looked up as a range of the kmers sorted by that rotation, and each kmer in the range is compared to
+	 * the whole query kmer with the N positions masked out, so the cost is one range scan however many Ns the kmer has.
+	 * @param queryStart Start position of kmer on query
+	 * @param table Table for the kmer length
+	 * @param code Packed kmer with Ns encoded as A
+	 * @param wildcards Positions of Ns as returned by RollingKmerIterator
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query
+	 * @param matches Accumulator to add matches to
+	 */
+	private void addPackedWildcardMatches(int queryStart, PackedKmerIndex.PackedKmerTable table, long code, long wildcards, boolean reverseComplement, FirstMatchAccumulator matches) {
+		int k = table.getK();
+		// Bit i of wildcards is the base at position k - 1 - i, so rotating the kmer rotates the wildcards the same way
+		long wildcardBits = (1L << k) - 1;
+		int rotation = 0;
+		int seedLength = -1;
+		for(int r = 0; r < table.getNumRotations(); r++) {
+			int offset = table.getRotationOffset(r);
+			long rotatedWildcards = offset == 0 ? wildcards : ((wildcards << offset) | (wildcards >>> (k - offset))) & wildcardBits;
+			int length = Long.numberOfLeadingZeros(rotatedWildcards) - (64 - k);
+			if(length > seedLength) {
+				seedLength = length;
+				rotation = r;
+			}
+		}
+		long suffixMask = seedLength == 0 && k == PackedKmerIndex.MAX_K ? -1L : (1L << (2 * (k - seedLength))) - 1;
+		long compareMask = ~RollingKmerIterator.wildcardCodeMask(wildcards);
+		long seedStart = table.rotate(code, rotation) & ~suffixMask;
+		long seedEnd = seedStart | suffixMask;
+		for(int i = table.lowerBoundRotated(rotation, seedStart); i < table.getNumKmers(); i++) {
+			int kmerIndex = table.getRotatedKmerIndex(rotation, i);
+			long kmer = table.getKmer(kmerIndex);
+			if(PackedKmerIndex.compareUnsigned(table.rotate(kmer, rotation), seedEnd) > 0) break;
+			if(((kmer ^ code) & compareMask) == 0) {
+				addPackedMatches(queryStart, table, kmerIndex, reverseComplement, matches);
+			}
+		}
+	}
+	
+	/**
+	 * Add matches of a single query kmer to targets in the packed index
+	 * @param queryStart Start position of kmer on query
+	 * @param table Table for the kmer length
+	 * @param kmerIndex Index of the kmer in the table, or -1 if the kmer is not in the table
+	 * @param reverseComplement Whether the kmer is from the reverse complement of the query
+	 * @param matches Accumulator to add matches to
+	 */
+	private void addPackedMatches(int queryStart, PackedKmerIndex.PackedKmerTable table, int kmerIndex, boolean reverseComplement, FirstMatchAccumulator matches) {
+		if(kmerIndex < 0) {return;}
+		for(int i = table.getPositionsStart(kmerIndex); i < table.getPositionsEnd(kmerIndex); i++) {
+			matches.add(table.getTargetId(i), table.getOffset(i), queryStart, table.getK(), reverseComplement);
+		}
+	}
+	
+	/**
+	 * Write kmer index out to a text file for debugging
+	 * Each line is a kmer and its target positions
 	 * @param outFile File to write
 	 * @throws IOException
 	 */
-	@SuppressWarnings("unused")
 	private void writeKmerIndex(String outFile) throws IOException {
+		if(minimizerIndex != null) {
+			throw new IllegalStateException("Can't write text version of minimizer index");
+		}
 		FileWriter w = new FileWriter(outFile);
+		if(packedIndex != null) {
+			for(int k = 1; k <= maxk; k++) {
+				PackedKmerIndex.PackedKmerTable table = packedIndex.getTable(k);
+				if(table == null) continue;
+				for(int i = 0; i < table.getNumKmers(); i++) {
+					String targets = "";
+					for(int j = table.getPositionsStart(i); j < table.getPositionsEnd(i); j++) {
+						if(j > table.getPositionsStart(i)) targets += ",";
+						targets += packedIndex.getTargetName(table.getTargetId(j)) + ":" + table.getOffset(j);
+					}
+					w.write(PackedKmerIndex.decode(table.getKmer(i), k) + "\t" + targets + "\n");
+				}
+			}
+			w.close();
+			return;
+		}
 		for(String kmer : targetKmers.keySet()) {
 			Iterator<SequencePos> iter = targetKmers.get(kmer).iterator();
 			String targets = iter.next().toString();
@@ -710,24 +1437,65 @@ public class PerfectKmerSearch {
 	public static void main(String[] args) throws IOException {
 		
 		CommandLineParser p = new CommandLineParser();
-		p.addStringArg("-fa", "Reference fasta", true);
-		p.addStringArg("-fq", "Query fastq", true);
-		p.addStringArg("-b", "Output bam", true);
-		p.addIntArg("-k", "Kmer length", true);
+		p.addStringArg("-fa", "Reference fasta (required unless loading index with -i)", false, null);
+		p.addStringArg("-fq", "Query fastq (required unless only writing index)", false, null);
+		p.addStringArg("-b", "Output bam (required unless only writing index)", false, null);
+		p.addIntArg("-k", "Kmer length (required unless loading index with -i)", false, -1);
 		p.addDoubleArg("-mn", "Max proportion of N's in query sequence", false, MAX_PCT_N);
+		p.addIntArg("-t", "Number of threads for matching reads", false, 1);
+		p.addBooleanArg("-pi", "Use 2-bit packed kmer index to save memory (requires k <= " + PackedKmerIndex.MAX_K + "); reads with many N's are only fast with this index, since the default index expands every N", false, false);
+		p.addStringArg("-wi", "Build packed kmer index from fasta and write to this binary file, to load later with -i", false, null);
+		p.addStringArg("-i", "Load packed kmer index from binary file written with -wi instead of building from fasta", false, null);
+		p.addIntArg("-mk", "Use sparse minimizer index with this minimizer length instead of full kmer index (max " + MinimizerKmerIndex.MAX_MINIMIZER_LENGTH + ", requires k <= " + PackedKmerIndex.MAX_K + "; 0 for full index)", false, 0);
+		p.addIntArg("-mw", "Number of minimizer candidates per kmer for minimizer index; smaller uses more memory and less time verifying matches (0 for every position in the kmer)", false, 0);
+		p.addBooleanArg("-rc", "Also match reverse complement of reads and report on negative strand", false, false);
+		p.addStringArg("-di", "Write text version of kmer index to this file for debugging", false, null);
 		p.parse(args);
 		String fasta = p.getStringArg("-fa");
 		String fastq = p.getStringArg("-fq");
 		String bam = p.getStringArg("-b");
 		int k = p.getIntArg("-k");
+		boolean packed = p.getBooleanArg("-pi");
+		int numThreads = p.getIntArg("-t");
+		String indexOut = p.getStringArg("-wi");
+		String indexIn = p.getStringArg("-i");
+		String indexDump = p.getStringArg("-di");
+		boolean reverseComplement = p.getBooleanArg("-rc");
+		int minimizerLength = p.getIntArg("-mk");
+		int minimizerWindow = p.getIntArg("-mw");
 		MAX_PCT_N = p.getDoubleArg("-mn");
 		if(MAX_PCT_N < 0 || MAX_PCT_N > 1) {
 			throw new IllegalArgumentException("Invalid value for max proportion of N's: " + MAX_PCT_N);
 		}
+		if(indexIn == null && (fasta == null || k < 1)) {
+			throw new IllegalArgumentException("Must provide fasta and kmer length, or an index file to load");
+		}
+		if(minimizerLength > 0 && (indexIn != null || indexOut != null || indexDump != null)) {
+			throw new IllegalArgumentException("Minimizer index can't be loaded from or written to a file");
+		}
+		if(indexIn != null && indexOut != null) {
+			throw new IllegalArgumentException("Can't load and write index in the same run");
+		}
+		if((fastq == null) != (bam == null)) {
+			throw new IllegalArgumentException("Must provide both query fastq and output bam, or neither");
+		}
+		if(fastq == null && indexOut == null && indexDump == null) {
+			throw new IllegalArgumentException("Nothing to do: provide query fastq and output bam, or an index file to write");
+		}
 		
 		logger.setLevel(Level.INFO);
-		PerfectKmerSearch pks = new PerfectKmerSearch(k, fasta);
-		pks.writeFirstKmerMatchEachTarget(fastq, bam);
+		PerfectKmerSearch pks;
+		if(indexIn != null) {
+			pks = fromPackedIndexFile(indexIn);
+		} else if(minimizerLength > 0) {
+			pks = new PerfectKmerSearch(k, fasta, minimizerLength, minimizerWindow);
+		} else {
+			pks = new PerfectKmerSearch(k, fasta, packed || indexOut != null);
+		}
+		pks.setMatchReverseComplement(reverseComplement);
+		if(indexOut != null) pks.writePackedIndex(indexOut);
+		if(indexDump != null) pks.writeKmerIndex(indexDump);
+		if(fastq != null) pks.writeFirstKmerMatchEachTarget(fastq, bam, numThreads);
 		
 		logger.info("");
 		logger.info("All done.");
@@ -0,0 +1,190 @@
+package search;
+
+/**
+ * Iterates over the kmers of a sequence as 2-bit packed codes, updating the code in constant time per base
+ * Bases are read directly from a byte array so no strings are created per kmer
+ * Ns are encoded as A in the code and reported separately as wildcard positions
+ * The code of the reverse complement of each kmer is maintained at the same time
+ * Kmers are limited to 32 bases
+ * @author prussell
+ *
+ */
+public class RollingKmerIterator {
+	
+	private int k; // Kmer length
+	private long codeMask; // Mask for the 2k bits of a code
+	private long wildcardMask; // Mask for the k bits of the wildcard positions
+	private byte[] bases; // Sequence
+	private int end; // One past the last base to use
+	private int next; // Index of next base to add
+	private long code; // Packed code of current kmer
+	private long wildcards; // Bit i is set if there is an N in the base whose code occupies bits 2i and 2i+1
+	private long rcCode; // Packed code of reverse complement of current kmer
+	private long rcWildcards; // Wildcard bits of reverse complement of current kmer
+	private int rcShift; // Shift to the code bits of the first base of a kmer
+	
+	/**
+	 * @param k Kmer length
+	 */
+	public RollingKmerIterator(int k) {
+		if(k < 1 || k > PackedKmerIndex.MAX_K) {
+			throw new IllegalArgumentException("Kmer length must be between 1 and " + PackedKmerIndex.MAX_K + ": " + k);
+		}
+		this.k = k;
+		codeMask = k == PackedKmerIndex.MAX_K ? -1L : (1L << (2 * k)) - 1;
+		wildcardMask = (1L << k) - 1;
+		rcShift = 2 * (k - 1);
+	}
+	
+	/**
+	 * @param bases Sequence
+	 * @param k Kmer length
+	 */
+	public RollingKmerIterator(byte[] bases, int k) {
+		this(k);
+		reset(bases, bases.length);
+	}
+	
+	/**
+	 * Start iterating over a new sequence
+	 * @param sequence Sequence
+	 * @param length Number of bases to use from the beginning of the array
+	 */
+	public void reset(byte[] sequence, int length) {
+		bases = sequence;
+		end = length;
+		next = 0;
+		code = 0;
+		wildcards = 0;
+		rcCode = 0;
+		rcWildcards = 0;
+	}
+	
+	/**
+	 * Advance to the next kmer
+	 * @return False if there are no more kmers
+	 * @throws IllegalArgumentException if the sequence contains a character other than ACGTN (case insensitive)
+	 */
+	public boolean next() {
+		if(next >= end) return false;
+		do {
+			int b = encodeBase(bases[next]);
+			if(b == -2) {
+				throw new IllegalArgumentException("Illegal character in sequence: " + (char) bases[next]);
+			}
+			code = ((code << 2) | (b < 0 ? 0 : b)) & codeMask;
+			wildcards = ((wildcards << 1) | (b >>> 31)) & wildcardMask;
+			// The complement of the new base becomes the first base of the reverse complement
+			rcCode = (rcCode >>> 2) | ((long) (b < 0 ? 0 : 3 - b) << rcShift);
+			rcWildcards = (rcWildcards >>> 1) | ((long) (b >>> 31) << (k - 1));
+			next++;
+		} while(next < k && next < end);
+		return next >= k;
+	}
+	
+	/**
+	 * @return Packed code of the current kmer, with Ns encoded as A
+	 */
+	public long getCode() {
+		return code;
+	}
+	
+	/**
+	 * @return Bit i is set if the base whose code occupies bits 2i and 2i+1 is an N
+	 */
+	public long getWildcards() {
+		return wildcards;
+	}
+	
+	/**
+	 * @return Packed code of the reverse complement of the current kmer, with Ns encoded as A
+	 */
+	public long getReverseComplementCode() {
+		return rcCode;
+	}
+	
+	/**
+	 * @return Wildcard bits of the reverse complement of the current kmer
+	 */
+	public long getReverseComplementWildcards() {
+		return rcWildcards;
+	}
+	
+	/**
+	 * @return Number of Ns in the current kmer
+	 */
+	public int getNumWildcards() {
+		return Long.bitCount(wildcards);
+	}
+	
+	/**
+	 * @return Start position of the current kmer on the sequence
+	 */
+	public int getPosition() {
+		return next - k;
+	}
+	
+	/**
+	 * @return Kmer length
+	 */
+	public int getK() {
+		return k;
+	}
+	
+	/**
+	 * @param b Base
+	 * @return 0-3 for A, C, G, T (case insensitive), -1 for N, or -2 for any other character
+	 */
+	public static int encodeBase(byte b) {
+		return PackedKmerIndex.encodeBase((char) b);
+	}
+	
+	/**
+	 * Get the number of ways to fill in wildcard positions
+	 * @param wildcards Wildcard bits
+	 * @return 4 to the power of the number of wildcards
+	 */
+	public static int numExpansions(long wildcards) {
+		int numNs = Long.bitCount(wildcards);
+		if(numNs > 15) {
+			throw new IllegalArgumentException("Too many Ns in kmer to expand: " + numNs);
+		}
+		return 1 << (2 * numNs);
+	}
+	
+	/**
+	 * Get a mask covering the code bits of the wildcard positions
+	 * @param wildcards Wildcard bits
+	 * @return Mask with both bits of each wildcard base set
+	 */
+	public static long wildcardCodeMask(long wildcards) {
+		long rtrn = 0;
+		long bits = wildcards;
+		while(bits != 0) {
+			rtrn |= 3L << (2 * Long.numberOfTrailingZeros(bits));
+			bits &= bits - 1;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Fill in the wildcard positions of a code with one combination of bases
+	 * Calling for every combination from 0 to numExpansions(wildcards) - 1 gives every possible value of the Ns
+	 * @param code Packed code with Ns encoded as A
+	 * @param wildcards Wildcard bits
+	 * @param combination Combination number; consecutive pairs of bits are the bases to put in successive wildcard positions
+	 * @return Packed code with Ns filled in
+	 */
+	public static long expandWildcards(long code, long wildcards, int combination) {
+		long rtrn = code;
+		long bits = wildcards;
+		int c = combination;
+		while(bits != 0) {
+			rtrn |= ((long) (c & 3)) << (2 * Long.numberOfTrailingZeros(bits));
+			c >>>= 2;
+			bits &= bits - 1;
+		}
+		return rtrn;
+	}
+	
+}
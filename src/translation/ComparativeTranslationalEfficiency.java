@@ -1,11 +1,11 @@
 package translation;
 
-import java.io.FileWriter;
 import java.io.IOException;
 
 import org.apache.log4j.Logger;
 
 import net.sf.samtools.util.CloseableIterator;
+import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Gene;
 import guttmanlab.core.annotation.io.BEDFileIO;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
@@ -90,7 +90,7 @@ public class ComparativeTranslationalEfficiency {
 	 */
 	public void writeLogFoldChangeCdsTEsToTable(String geneBed, String chrSizeFile, String outputTable, double logBase) throws IOException {
 		logger.info("");
-		FileWriter w = new FileWriter(outputTable);
+		TableWriter w = new TableWriter(outputTable);
 		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(geneBed, chrSizeFile);
 		int numGenes = genes.getNumAnnotations();
 		CountLogger countLogger = new CountLogger(numGenes, 20);
@@ -104,22 +104,23 @@ public class ComparativeTranslationalEfficiency {
 		header += "control_count_CDS_" + sample2.getRibosomeName() + "\t";
 		header += "TE_score_CDS_" + sample2.getRibosomeName() + "\t";
 		header += "log" + logBase + "_fold_change";
-		w.write(header + "\n");
+		w.writeLine(header);
 		while(iter.hasNext()) {
 			Gene gene = iter.next();
 			countLogger.advance();
 			double te1 = sample1.getCdsTE(gene);
 			double te2 = sample2.getCdsTE(gene);
 			double logFoldChange = getCdsTELogFoldChange(gene, logBase);
-			String line = gene.getName() + "\t";
-			line += sample1.getRibosomeCount(gene.getCodingRegion()) + "\t";
-			line += sample1.getControlCount(gene.getCodingRegion()) + "\t";
-			line += te1 + "\t";
-			line += sample2.getRibosomeCount(gene.getCodingRegion()) + "\t";
-			line += sample2.getControlCount(gene.getCodingRegion()) + "\t";
-			line += te2 + "\t";
-			line += logFoldChange + "\t";
-			w.write(line + "\n");
+			Annotation cds = gene.getCodingRegion();
+			w.add(gene.getName());
+			w.add(sample1.getRibosomeCount(cds));
+			w.add(sample1.getControlCount(cds));
+			w.add(te1);
+			w.add(sample2.getRibosomeCount(cds));
+			w.add(sample2.getControlCount(cds));
+			w.add(te2);
+			w.add(logFoldChange);
+			w.endLine();
 		}
 		w.close();
 		iter.close();
@@ -0,0 +1,268 @@
+package translation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import guttmanlab.core.annotation.Annotation.Strand;
+
+/**
+ * Read counts over regions for one bam file, saved in an append-only file so later runs on the same bam file can reuse them
+ * The file is identified by the bam file's path, size and modification time and whether counts are strand specific;
+ * if any of these change, the saved counts are discarded and the file is started over
+ * Each line after the header holds one region key and its count; only lines ending in a newline are read,
+ * and an incomplete last line left by an interrupted run is removed before new counts are appended
+ * There is one store per count file, shared by all users of the same bam file, so counts from different users are not interleaved
+ * Other processes may use the same count file, so the header check and each append hold an exclusive lock on the file;
+ * new counts are collected in memory and appended as whole lines
+ * @author prussell
+ *
+ */
+public class CountStore {
+	
+	private File file; // The count file
+	private String header; // Header line identifying the bam file and strandedness
+	private FileOutputStream out; // Appends new counts to the file
+	private StringBuilder pending = new StringBuilder(); // Counts added but not yet written to the file
+	private int numUsers; // Number of users that have opened the store and not closed it
+	private static Map<File, CountStore> openStores = new HashMap<File, CountStore>(); // Open stores by count file
+	private static final int MAX_PENDING = 1 << 16; // Number of characters of pending counts at which they are written to the file
+	private static Charset charset = Charset.forName("UTF-8");
+	private static Logger logger = Logger.getLogger(CountStore.class.getName());
+	
+	/**
+	 * Get the store for a bam file, shared with any other user of the same count file
+	 * Each call must be matched by a call to close()
+	 * @param directory Directory to keep count files in
+	 * @param bamFile Bam file the counts come from
+	 * @param strandSpecific Whether counts are strand specific
+	 * @return The store
+	 * @throws IOException
+	 */
+	public static synchronized CountStore open(String directory, String bamFile, boolean strandSpecific) throws IOException {
+		CountStore store = new CountStore(directory, bamFile, strandSpecific);
+		CountStore rtrn = openStores.get(store.file);
+		if(rtrn == null) {
+			rtrn = store;
+			openStores.put(rtrn.file, rtrn);
+		}
+		rtrn.numUsers++;
+		return rtrn;
+	}
+	
+	/**
+	 * @param directory Directory to keep count files in
+	 * @param bamFile Bam file the counts come from
+	 * @param strandSpecific Whether counts are strand specific
+	 * @throws IOException
+	 */
+	private CountStore(String directory, String bamFile, boolean strandSpecific) throws IOException {
+		File bam = new File(bamFile).getCanonicalFile();
+		if(!bam.exists()) {
+			throw new IllegalArgumentException("Bam file does not exist: " + bamFile);
+		}
+		File dir = new File(directory);
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Could not create count cache directory " + directory);
+		}
+		header = "#bam=" + bam.getPath() + "\tsize=" + bam.length() + "\tmodified=" + bam.lastModified() + "\tstrandSpecific=" + strandSpecific;
+		String id = Integer.toHexString(bam.getPath().hashCode()) + (strandSpecific ? ".ss" : ".ns");
+		file = new File(dir, bam.getName() + "." + id + ".counts").getCanonicalFile();
+	}
+	
+	/**
+	 * Read the saved counts into a map and open the file for appending new counts if not already open
+	 * If the file was written for a different version of the bam file, it is started over
+	 * @param counts Map to add saved counts to
+	 * @return Number of saved counts read
+	 * @throws IOException
+	 */
+	public synchronized int load(RegionDoubleMap counts) throws IOException {
+		// Make counts added by another user of the store visible before reading
+		flush();
+		int numRead = 0;
+		int numInvalid = 0;
+		long completeLength = 0; // Length of the file up to the end of the last complete line
+		long offset = 0;
+		boolean valid = false;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			// Hold the lock while checking the header so another process can't start the file over or append at the same time
+			FileLock lock = channel.lock();
+			try {
+				InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+				ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+				boolean first = true;
+				int b;
+				while((b = in.read()) != -1) {
+					offset++;
+					if(b != '\n') {
+						line.write(b);
+						continue;
+					}
+					String text = new String(line.toByteArray(), charset);
+					line.reset();
+					completeLength = offset;
+					if(first) {
+						first = false;
+						valid = header.equals(text);
+						if(!valid) break;
+						continue;
+					}
+					String[] fields = text.split("\t");
+					try {
+						if(fields.length != 4) {
+							throw new IllegalArgumentException("Wrong number of fields");
+						}
+						counts.put(parseKey(fields[0], fields[1], fields[2]), Double.parseDouble(fields[3]));
+						numRead++;
+					} catch(IllegalArgumentException e) {
+						// Includes NumberFormatException
+						numInvalid++;
+					}
+				}
+				if(!valid) {
+					if(offset > 0) {
+						logger.info("Bam file has changed since counts were saved in " + file.getPath() + ". Starting over.");
+					}
+					channel.truncate(0);
+					channel.write(ByteBuffer.wrap((header + "\n").getBytes(charset)), 0);
+				} else if(completeLength < offset) {
+					// Appends are whole lines under the lock, so an incomplete line is left by an interrupted run
+					logger.warn("Removing incomplete last line of " + file.getPath() + ".");
+					channel.truncate(completeLength);
+				}
+			} finally {
+				lock.release();
+			}
+		} finally {
+			raf.close();
+		}
+		if(numInvalid > 0) {
+			logger.warn("Skipped " + numInvalid + " invalid lines in " + file.getPath() + ".");
+		}
+		if(out == null) {
+			out = new FileOutputStream(file, true);
+		}
+		logger.info("Loaded " + numRead + " saved counts from " + file.getPath() + ".");
+		return numRead;
+	}
+	
+	/**
+	 * @param ref Reference name
+	 * @param strand Strand name
+	 * @param blocks Comma separated blocks as start-end
+	 * @return The region key
+	 * @throws IllegalArgumentException If the key is not valid
+	 */
+	private static RegionKey parseKey(String ref, String strand, String blocks) {
+		String[] blockStrings = blocks.isEmpty() ? new String[0] : blocks.split(",");
+		int[] coords = new int[2 * blockStrings.length];
+		for(int i = 0; i < blockStrings.length; i++) {
+			int dash = blockStrings[i].indexOf('-');
+			if(dash < 0) {
+				throw new IllegalArgumentException("Invalid block: " + blockStrings[i]);
+			}
+			coords[2 * i] = Integer.parseInt(blockStrings[i].substring(0, dash));
+			coords[2 * i + 1] = Integer.parseInt(blockStrings[i].substring(dash + 1));
+		}
+		return new RegionKey(ref, Strand.valueOf(strand), coords);
+	}
+	
+	/**
+	 * Append a count to the file
+	 * Keys with no reference or strand are not saved
+	 * Counts are not visible in the file until flush() is called
+	 * Safe to call from multiple threads
+	 * @param key Region key
+	 * @param count Count
+	 * @throws IOException
+	 */
+	public synchronized void add(RegionKey key, double count) throws IOException {
+		if(out == null) {
+			throw new IllegalStateException("Must call load() before adding counts");
+		}
+		if(key.getReferenceName() == null || key.getStrand() == null) {
+			// Can't be read back
+			return;
+		}
+		pending.append(key.getReferenceName());
+		pending.append('\t');
+		pending.append(key.getStrand().name());
+		pending.append('\t');
+		for(int i = 0; i < key.getNumBlocks(); i++) {
+			if(i > 0) pending.append(',');
+			pending.append(key.getBlockStart(i));
+			pending.append('-');
+			pending.append(key.getBlockEnd(i));
+		}
+		pending.append('\t');
+		pending.append(count);
+		pending.append('\n');
+		if(pending.length() >= MAX_PENDING) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Write any added counts to the file
+	 * The counts are appended as whole lines while holding an exclusive lock on the file
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if(out == null || pending.length() == 0) {
+			return;
+		}
+		FileChannel channel = out.getChannel();
+		FileLock lock = channel.lock();
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(pending.toString().getBytes(charset));
+			while(bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} finally {
+			lock.release();
+		}
+		pending.setLength(0);
+	}
+	
+	/**
+	 * Release this user's use of the store, and write any added counts and close the file when no users are left
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized(CountStore.class) {
+			numUsers--;
+			if(numUsers > 0) {
+				flush();
+				return;
+			}
+			openStores.remove(file);
+		}
+		synchronized(this) {
+			if(out != null) {
+				try {
+					flush();
+				} finally {
+					out.close();
+					out = null;
+				}
+			}
+		}
+	}
+	
+}
@@ -1,9 +1,11 @@
 package translation;
 
 import java.io.IOException;
+import java.util.Collection;
 
 import org.apache.log4j.Logger;
 
+import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Gene;
 import guttmanlab.core.util.StringParser;
 import score.AbstractRegionScore;
@@ -63,8 +65,35 @@ public class DifferentialTranslationalEfficiency extends AbstractRegionScore<Gen
 	public static DifferentialTranslationalEfficiency factory(String ribosomeBam1, String ribosomeBam2, String controlBam1, String controlBam2, String geneBed, String chrSizes, 
 			double ribosomeGenomeTotal1, double ribosomeGenomeTotal2, double controlGenomeTotal1, double controlGenomeTotal2, double ribosomeExonTotal1, double ribosomeExonTotal2, 
 			double controlExonTotal1, double controlExonTotal2, boolean isStrandSpecific, double cutoffLog2ratio) throws IOException {
-		TranslationalEfficiencyFromBam te1 = new TranslationalEfficiencyFromBam(ribosomeBam1, controlBam1, geneBed, chrSizes, ribosomeGenomeTotal1, controlGenomeTotal1, ribosomeExonTotal1, controlExonTotal1, isStrandSpecific);
-		TranslationalEfficiencyFromBam te2 = new TranslationalEfficiencyFromBam(ribosomeBam2, controlBam2, geneBed, chrSizes, ribosomeGenomeTotal2, controlGenomeTotal2, ribosomeExonTotal2, controlExonTotal2, isStrandSpecific);
+		return factory(ribosomeBam1, ribosomeBam2, controlBam1, controlBam2, geneBed, chrSizes, ribosomeGenomeTotal1, ribosomeGenomeTotal2, controlGenomeTotal1, controlGenomeTotal2,
+				ribosomeExonTotal1, ribosomeExonTotal2, controlExonTotal1, controlExonTotal2, isStrandSpecific, cutoffLog2ratio, RibosomeCounting.OVERLAP);
+	}
+	
+	/**
+	 * @param ribosomeBam1 Bam file of ribosome profiling sample 1
+	 * @param ribosomeBam 2Bam file of ribosome profiling sample 2
+	 * @param controlBam1 Bam file of control sample 1
+	 * @param controlBam2 Bam file of control sample 2
+	 * @param geneBed Bed file of genome annotation
+	 * @param chrSizes Chromsome size file
+	 * @param ribosomeGenomeTotal1 Optional total number of ribosome reads mapped to genome (instead of computing from data), sample 1
+	 * @param ribosomeGenomeTotal2 Optional total number of ribosome reads mapped to genome (instead of computing from data), sample 2
+	 * @param controlGenomeTotal1 Optional total number of control reads mapped to genome (instead of computing from data), sample 1
+	 * @param controlGenomeTotal2 Optional total number of control reads mapped to genome (instead of computing from data), sample 2
+	 * @param ribosomeExonTotal1 Optional total number of ribosome reads mapped to exons (instead of computing from data), sample 1
+	 * @param ribosomeExonTotal2 Optional total number of ribosome reads mapped to exons (instead of computing from data), sample 2
+	 * @param controlExonTotal1 Optional total number of control reads mapped to exons (instead of computing from data), sample 1
+	 * @param controlExonTotal2 Optional total number of control reads mapped to exons (instead of computing from data), sample 2
+	 * @param isStrandSpecific Whether the libraries are strand specific
+	 * @param cutoffLog2ratio
+	 * @param ribosomeCounting How to count ribosome reads in both samples; with a P-site mode and no offset table, offsets are estimated separately for each sample
+	 * @throws IOException
+	 */
+	public static DifferentialTranslationalEfficiency factory(String ribosomeBam1, String ribosomeBam2, String controlBam1, String controlBam2, String geneBed, String chrSizes, 
+			double ribosomeGenomeTotal1, double ribosomeGenomeTotal2, double controlGenomeTotal1, double controlGenomeTotal2, double ribosomeExonTotal1, double ribosomeExonTotal2, 
+			double controlExonTotal1, double controlExonTotal2, boolean isStrandSpecific, double cutoffLog2ratio, RibosomeCounting ribosomeCounting) throws IOException {
+		TranslationalEfficiencyFromBam te1 = new TranslationalEfficiencyFromBam(ribosomeBam1, controlBam1, geneBed, chrSizes, ribosomeGenomeTotal1, controlGenomeTotal1, ribosomeExonTotal1, controlExonTotal1, isStrandSpecific, null, 1, ribosomeCounting);
+		TranslationalEfficiencyFromBam te2 = new TranslationalEfficiencyFromBam(ribosomeBam2, controlBam2, geneBed, chrSizes, ribosomeGenomeTotal2, controlGenomeTotal2, ribosomeExonTotal2, controlExonTotal2, isStrandSpecific, null, 1, ribosomeCounting);
 		return new DifferentialTranslationalEfficiency(te1, te2, cutoffLog2ratio);
 	}
 	
@@ -82,6 +111,44 @@ public class DifferentialTranslationalEfficiency extends AbstractRegionScore<Gen
 		return te2;
 	}
 	
+	/**
+	 * Save region counts for both samples in files in a directory so later runs on the same bam files can reuse them
+	 * @param directory Directory for count files
+	 * @throws IOException
+	 */
+	public void setCountCache(String directory) throws IOException {
+		te1.setCountCache(directory);
+		te2.setCountCache(directory);
+	}
+	
+	/**
+	 * Count reads over a set of regions in all four samples with one pass through each bam file and save the counts in the caches
+	 * @param regions Regions to count
+	 * @throws IOException
+	 */
+	public void cacheCounts(Collection<? extends Annotation> regions) throws IOException {
+		te1.cacheCounts(regions);
+		te2.cacheCounts(regions);
+	}
+	
+	/**
+	 * Write any counts not yet saved to the count files
+	 * @throws IOException
+	 */
+	public void flushCountCache() throws IOException {
+		te1.flushCountCache();
+		te2.flushCountCache();
+	}
+	
+	/**
+	 * Write any counts not yet saved and stop saving counts
+	 * @throws IOException
+	 */
+	public void closeCountCache() throws IOException {
+		te1.closeCountCache();
+		te2.closeCountCache();
+	}
+	
 	/**
 	 * @return Sample 1 name
 	 */
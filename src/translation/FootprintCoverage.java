@@ -0,0 +1,356 @@
+package translation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+
+/**
+ * Positions of read 5' ends in a bam file, loaded with one pass through the bam file so the number of reads
+ * in a region can be looked up without querying the bam file again
+ * For each reference sequence and strand, the distinct 5' end positions are stored in sorted order with prefix sums of the
+ * number of reads at each position, so the count for a region is a binary search at each end of each block
+ * Only positions with reads are stored, which keeps memory proportional to the number of reads rather than the genome size
+ * A read is counted for a region if its 5' end is in one of the region's blocks, which for ribosome footprints is a
+ * single position per read rather than every region the read overlaps
+ * @author prussell
+ *
+ */
+public class FootprintCoverage {
+	
+	private Map<String, StrandCoverage> plusStrand; // Coverage of reads on the plus strand by reference
+	private Map<String, StrandCoverage> minusStrand; // Coverage of reads on the minus strand by reference
+	private long numReads; // Total number of reads
+	private static Logger logger = Logger.getLogger(FootprintCoverage.class.getName());
+	
+	/**
+	 * @param bamFile Bam file, which must be sorted by coordinate
+	 */
+	public FootprintCoverage(String bamFile) {
+		this(new BAMSingleReadCollection(new File(bamFile)));
+	}
+	
+	/**
+	 * @param data Reads, which must be sorted by coordinate
+	 */
+	public FootprintCoverage(BAMSingleReadCollection data) {
+		logger.info("Loading read 5' end positions...");
+		Map<String, PositionList> plusPositions = new HashMap<String, PositionList>();
+		Map<String, PositionList> minusPositions = new HashMap<String, PositionList>();
+		CloseableIterator<SAMFragment> iter = data.sortedIterator();
+		while(iter.hasNext()) {
+			SAMFragment read = iter.next();
+			numReads++;
+			if(numReads % 10000000 == 0) {
+				logger.info("Finished " + numReads + " reads");
+			}
+			Strand strand = read.getOrientation();
+			String ref = read.getReferenceName();
+			if(strand == Strand.POSITIVE) {
+				getPositionList(plusPositions, ref).add(read.getReferenceStartPosition());
+			} else if(strand == Strand.NEGATIVE) {
+				getPositionList(minusPositions, ref).add(read.getReferenceEndPosition() - 1);
+			}
+		}
+		iter.close();
+		plusStrand = toCoverage(plusPositions);
+		minusStrand = toCoverage(minusPositions);
+		logger.info("Loaded 5' end positions of " + numReads + " reads.");
+	}
+	
+	/**
+	 * Build coverage from read positions that have already been collected, e.g. positions other than the 5' end
+	 * @param plusPositions Counted position of each read on the plus strand, by reference
+	 * @param minusPositions Counted position of each read on the minus strand, by reference
+	 * @param numReads Total number of reads in the bam file
+	 */
+	FootprintCoverage(Map<String, PositionList> plusPositions, Map<String, PositionList> minusPositions, long numReads) {
+		plusStrand = toCoverage(plusPositions);
+		minusStrand = toCoverage(minusPositions);
+		this.numReads = numReads;
+	}
+	
+	/**
+	 * @param positions Position lists by reference
+	 * @param ref Reference name
+	 * @return The list for the reference, created if necessary
+	 */
+	static PositionList getPositionList(Map<String, PositionList> positions, String ref) {
+		PositionList rtrn = positions.get(ref);
+		if(rtrn == null) {
+			rtrn = new PositionList();
+			positions.put(ref, rtrn);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param positions Position lists by reference
+	 * @return Coverage by reference
+	 */
+	private static Map<String, StrandCoverage> toCoverage(Map<String, PositionList> positions) {
+		Map<String, StrandCoverage> rtrn = new HashMap<String, StrandCoverage>();
+		for(String ref : positions.keySet()) {
+			rtrn.put(ref, new StrandCoverage(positions.get(ref)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Growable list of positions
+	 * @author prussell
+	 *
+	 */
+	static class PositionList {
+		
+		private int[] positions = new int[1024];
+		private int size;
+		
+		/**
+		 * @return Number of positions
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * @param index Index
+		 * @return Position at the index
+		 */
+		public int get(int index) {
+			return positions[index];
+		}
+		
+		/**
+		 * @return The positions in increasing order without duplicates
+		 */
+		public int[] toSortedDistinctArray() {
+			int[] sorted = Arrays.copyOf(positions, size);
+			Arrays.sort(sorted);
+			int numDistinct = 0;
+			for(int i = 0; i < sorted.length; i++) {
+				if(i == 0 || sorted[i] != sorted[i - 1]) {
+					sorted[numDistinct++] = sorted[i];
+				}
+			}
+			return Arrays.copyOf(sorted, numDistinct);
+		}
+		
+		/**
+		 * @param position Position to add
+		 */
+		public void add(int position) {
+			if(size == positions.length) {
+				positions = Arrays.copyOf(positions, 2 * size);
+			}
+			positions[size++] = position;
+		}
+		
+	}
+	
+	/**
+	 * Distinct 5' end positions on one strand of one reference, with prefix sums of read counts
+	 * @author prussell
+	 *
+	 */
+	private static class StrandCoverage {
+		
+		private int[] positions; // Distinct positions in increasing order
+		private int[] cumulativeCounts; // Number of reads at positions before each index; one longer than positions
+		
+		/**
+		 * @param list 5' end position of each read, in any order
+		 */
+		public StrandCoverage(PositionList list) {
+			int[] sorted = Arrays.copyOf(list.positions, list.size);
+			Arrays.sort(sorted);
+			int numDistinct = 0;
+			for(int i = 0; i < sorted.length; i++) {
+				if(i == 0 || sorted[i] != sorted[i - 1]) numDistinct++;
+			}
+			positions = new int[numDistinct];
+			cumulativeCounts = new int[numDistinct + 1];
+			int j = -1;
+			for(int i = 0; i < sorted.length; i++) {
+				if(i == 0 || sorted[i] != sorted[i - 1]) {
+					j++;
+					positions[j] = sorted[i];
+					cumulativeCounts[j + 1] = cumulativeCounts[j];
+				}
+				cumulativeCounts[j + 1]++;
+			}
+		}
+		
+		/**
+		 * @param position Position
+		 * @return Number of reads with 5' end before the position
+		 */
+		public int countBefore(int position) {
+			int lo = 0;
+			int hi = positions.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(positions[mid] < position) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return cumulativeCounts[lo];
+		}
+		
+		/**
+		 * @return Number of reads on the strand
+		 */
+		public int total() {
+			return cumulativeCounts[positions.length];
+		}
+		
+		/**
+		 * @param start Start position
+		 * @param end Position after the last position
+		 * @return Number of reads with 5' end in the interval
+		 */
+		public int count(int start, int end) {
+			return countBefore(end) - countBefore(start);
+		}
+		
+	}
+	
+	/**
+	 * @param region Region
+	 * @param strandSpecific Whether to count only reads on the region's strand; if false, or if the region has no strand,
+	 * reads on both strands are counted
+	 * @return Number of reads with 5' end (or other counted position) in one of the region's blocks
+	 */
+	public int count(Annotation region, boolean strandSpecific) {
+		Strand strand = region.getOrientation();
+		boolean countPlus = !strandSpecific || strand != Strand.NEGATIVE;
+		boolean countMinus = !strandSpecific || strand != Strand.POSITIVE;
+		StrandCoverage plus = countPlus ? plusStrand.get(region.getReferenceName()) : null;
+		StrandCoverage minus = countMinus ? minusStrand.get(region.getReferenceName()) : null;
+		if(plus == null && minus == null) {
+			return 0;
+		}
+		int rtrn = 0;
+		Iterator<SingleInterval> blocks = region.getBlocks();
+		while(blocks.hasNext()) {
+			SingleInterval block = blocks.next();
+			int start = block.getReferenceStartPosition();
+			int end = block.getReferenceEndPosition();
+			if(plus != null) rtrn += plus.count(start, end);
+			if(minus != null) rtrn += minus.count(start, end);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Count reads in the union of the blocks of a set of regions, so reads in overlapping regions are counted once
+	 * @param regions Regions
+	 * @param strandSpecific Whether to count only reads on each region's strand; if false, or if a region has no strand,
+	 * reads on both strands are counted
+	 * @return Number of reads with 5' end (or other counted position) in at least one block
+	 */
+	public long countInUnion(Collection<? extends Annotation> regions, boolean strandSpecific) {
+		Map<String, List<int[]>> plusBlocks = new HashMap<String, List<int[]>>();
+		Map<String, List<int[]>> minusBlocks = new HashMap<String, List<int[]>>();
+		for(Annotation region : regions) {
+			Strand strand = region.getOrientation();
+			boolean countPlus = !strandSpecific || strand != Strand.NEGATIVE;
+			boolean countMinus = !strandSpecific || strand != Strand.POSITIVE;
+			Iterator<SingleInterval> blocks = region.getBlocks();
+			while(blocks.hasNext()) {
+				SingleInterval block = blocks.next();
+				int[] interval = {block.getReferenceStartPosition(), block.getReferenceEndPosition()};
+				if(countPlus) getBlockList(plusBlocks, region.getReferenceName()).add(interval);
+				if(countMinus) getBlockList(minusBlocks, region.getReferenceName()).add(interval);
+			}
+		}
+		return countInUnion(plusStrand, plusBlocks) + countInUnion(minusStrand, minusBlocks);
+	}
+	
+	/**
+	 * @param blocks Block lists by reference
+	 * @param ref Reference name
+	 * @return The list for the reference, created if necessary
+	 */
+	private static List<int[]> getBlockList(Map<String, List<int[]>> blocks, String ref) {
+		List<int[]> rtrn = blocks.get(ref);
+		if(rtrn == null) {
+			rtrn = new ArrayList<int[]>();
+			blocks.put(ref, rtrn);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param coverage Coverage of one strand by reference
+	 * @param blocks Blocks by reference, which are sorted in place
+	 * @return Number of reads in the union of the blocks
+	 */
+	private static long countInUnion(Map<String, StrandCoverage> coverage, Map<String, List<int[]>> blocks) {
+		long rtrn = 0;
+		for(String ref : blocks.keySet()) {
+			StrandCoverage refCoverage = coverage.get(ref);
+			if(refCoverage == null) continue;
+			List<int[]> refBlocks = blocks.get(ref);
+			Collections.sort(refBlocks, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] o1, int[] o2) {
+					return Integer.compare(o1[0], o2[0]);
+				}
+			});
+			// Merge overlapping blocks and count each merged interval once
+			int start = refBlocks.get(0)[0];
+			int end = refBlocks.get(0)[1];
+			for(int[] block : refBlocks) {
+				if(block[0] > end) {
+					rtrn += refCoverage.count(start, end);
+					start = block[0];
+					end = block[1];
+				} else {
+					end = Math.max(end, block[1]);
+				}
+			}
+			rtrn += refCoverage.count(start, end);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @return Total number of reads in the bam file
+	 */
+	public long getNumReads() {
+		return numReads;
+	}
+	
+	/**
+	 * @return Number of reads with a counted position, e.g. excluding reads whose length has no P-site offset
+	 */
+	public long getNumCountedReads() {
+		long rtrn = 0;
+		for(StrandCoverage coverage : plusStrand.values()) {
+			rtrn += coverage.total();
+		}
+		for(StrandCoverage coverage : minusStrand.values()) {
+			rtrn += coverage.total();
+		}
+		return rtrn;
+	}
+	
+}
@@ -0,0 +1,361 @@
+package translation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+import guttmanlab.core.util.StringParser;
+
+/**
+ * Fasta file with a samtools style .fai index, read through memory mapped buffers so only the parts of the genome
+ * that are asked for are read from disk
+ * Each reference sequence is mapped the first time it is used; the mapping is shared by all threads
+ * If the index does not exist or is older than the fasta file, it is built with one pass through the fasta file and saved next to it if possible
+ * @author prussell
+ *
+ */
+public class IndexedFasta {
+	
+	private String fastaFile; // Fasta file
+	private Map<String, IndexEntry> index; // Index entry for each reference sequence, in file order
+	private Map<String, MappedByteBuffer> buffers; // Mapped bytes of each reference sequence that has been used
+	private static final byte[] COMPLEMENT = complementTable(); // Complement of each nucleotide character
+	private static Logger logger = Logger.getLogger(IndexedFasta.class.getName());
+	
+	/**
+	 * Location of one reference sequence in the fasta file
+	 * @author prussell
+	 *
+	 */
+	private static class IndexEntry {
+		
+		private long length; // Number of bases
+		private long offset; // File offset of the first base
+		private int lineBases; // Number of bases on each full line
+		private int lineBytes; // Number of bytes on each full line including the line terminator
+		
+		public IndexEntry(long length, long offset, int lineBases, int lineBytes) {
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineBytes = lineBytes;
+		}
+		
+		/**
+		 * @param pos Zero based position in the sequence
+		 * @return Offset of the base from the first base in the file
+		 */
+		public long byteOffset(long pos) {
+			return (pos / lineBases) * lineBytes + pos % lineBases;
+		}
+		
+	}
+	
+	/**
+	 * @param fastaFile Fasta file, uncompressed, with lines of equal length within each sequence
+	 * @throws IOException
+	 */
+	public IndexedFasta(String fastaFile) throws IOException {
+		this.fastaFile = fastaFile;
+		buffers = new ConcurrentHashMap<String, MappedByteBuffer>();
+		File faiFile = new File(fastaFile + ".fai");
+		if(faiFile.exists() && faiFile.lastModified() >= new File(fastaFile).lastModified()) {
+			index = readIndex(faiFile);
+		} else {
+			if(faiFile.exists()) {
+				logger.info("Index " + faiFile + " is older than the fasta file. Indexing fasta file...");
+			} else {
+				logger.info("No index " + faiFile + ". Indexing fasta file...");
+			}
+			index = buildIndex(fastaFile);
+			writeIndex(faiFile);
+		}
+		logger.info("Indexed " + index.size() + " sequences in " + fastaFile + ".");
+	}
+	
+	/**
+	 * @param faiFile Index file
+	 * @return Index entries by sequence name
+	 * @throws IOException
+	 */
+	private static Map<String, IndexEntry> readIndex(File faiFile) throws IOException {
+		Map<String, IndexEntry> rtrn = new LinkedHashMap<String, IndexEntry>();
+		BufferedReader reader = new BufferedReader(new FileReader(faiFile));
+		StringParser s = new StringParser();
+		String line;
+		while((line = reader.readLine()) != null) {
+			if(line.trim().isEmpty()) continue;
+			s.parse(line);
+			if(s.getFieldCount() < 5) {
+				reader.close();
+				throw new IllegalArgumentException("Fasta index line must have at least 5 fields: " + line);
+			}
+			rtrn.put(s.asString(0), new IndexEntry(Long.parseLong(s.asString(1)), Long.parseLong(s.asString(2)), s.asInt(3), s.asInt(4)));
+		}
+		reader.close();
+		return rtrn;
+	}
+	
+	/**
+	 * Index a fasta file with one pass through the file
+	 * @param fastaFile Fasta file
+	 * @return Index entries by sequence name
+	 * @throws IOException
+	 */
+	private static Map<String, IndexEntry> buildIndex(String fastaFile) throws IOException {
+		Map<String, IndexEntry> rtrn = new LinkedHashMap<String, IndexEntry>();
+		InputStream in = new FileInputStream(fastaFile);
+		byte[] chunk = new byte[1 << 16]; // Bytes read from the file
+		int chunkSize = 0; // Number of bytes in the chunk, or -1 at the end of the file
+		int chunkPos = 0; // Position in the chunk of the next byte
+		StringBuilder name = null; // Name of the sequence being read, or null if not in a sequence
+		long offset = 0; // File offset of the current line
+		long seqOffset = 0; // File offset of the first base of the current sequence
+		long length = 0; // Number of bases in the current sequence
+		int lineBases = -1; // Number of bases on the first line of the current sequence
+		int lineBytes = -1; // Number of bytes on the first line of the current sequence
+		boolean shortLineSeen = false; // Whether a line shorter than the first has been seen in the current sequence
+		boolean inHeader = false; // Whether reading a header line
+		boolean nameDone = false; // Whether the whitespace ending the sequence name has been reached
+		int basesOnLine = 0;
+		int bytesOnLine = 0;
+		int b;
+		while(true) {
+			if(chunkPos == chunkSize) {
+				chunkSize = in.read(chunk);
+				chunkPos = 0;
+			}
+			b = chunkSize == -1 ? -1 : chunk[chunkPos++] & 0xff;
+			if(b == -1 || b == '\n') {
+				if(b == '\n') bytesOnLine++;
+				if(inHeader) {
+					inHeader = false;
+					seqOffset = offset + bytesOnLine;
+				} else if(name != null && basesOnLine == 0) {
+					// A blank line is only allowed at the end of the sequence
+					if(lineBases > 0) shortLineSeen = true;
+				} else if(name != null) {
+					if(shortLineSeen) {
+						in.close();
+						throw new IllegalArgumentException("Fasta lines must all be the same length within a sequence: " + name);
+					}
+					if(lineBases < 0) {
+						lineBases = basesOnLine;
+						lineBytes = bytesOnLine;
+					} else if(basesOnLine > lineBases || (b != -1 && bytesOnLine - basesOnLine != lineBytes - lineBases)) {
+						// The last line of the file may have no line terminator
+						in.close();
+						throw new IllegalArgumentException("Fasta lines must all be the same length within a sequence: " + name);
+					} else if(basesOnLine < lineBases) {
+						shortLineSeen = true;
+					}
+					length += basesOnLine;
+				}
+				offset += bytesOnLine;
+				basesOnLine = 0;
+				bytesOnLine = 0;
+				if(b == -1) break;
+				continue;
+			}
+			if(b == '>' && bytesOnLine == 0) {
+				if(name != null) {
+					rtrn.put(name.toString(), new IndexEntry(length, seqOffset, Math.max(lineBases, 1), Math.max(lineBytes, 1)));
+				}
+				name = new StringBuilder();
+				inHeader = true;
+				nameDone = false;
+				length = 0;
+				lineBases = -1;
+				lineBytes = -1;
+				shortLineSeen = false;
+				bytesOnLine++;
+				continue;
+			}
+			bytesOnLine++;
+			if(inHeader) {
+				// Sequence name is the header up to the first whitespace
+				if(Character.isWhitespace(b)) nameDone = true;
+				if(!nameDone) name.append((char) b);
+			} else if(b != '\r') {
+				basesOnLine++;
+			}
+		}
+		in.close();
+		if(name != null) {
+			rtrn.put(name.toString(), new IndexEntry(length, seqOffset, Math.max(lineBases, 1), Math.max(lineBytes, 1)));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Save the index, or log a warning if it can't be written
+	 * @param faiFile Index file
+	 */
+	private void writeIndex(File faiFile) {
+		try {
+			FileWriter w = new FileWriter(faiFile);
+			for(String name : index.keySet()) {
+				IndexEntry entry = index.get(name);
+				w.write(name + "\t" + entry.length + "\t" + entry.offset + "\t" + entry.lineBases + "\t" + entry.lineBytes + "\n");
+			}
+			w.close();
+		} catch(IOException e) {
+			logger.warn("Could not write fasta index " + faiFile + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param name Sequence name
+	 * @return Whether the fasta file contains the sequence
+	 */
+	public boolean containsSequence(String name) {
+		return index.containsKey(name);
+	}
+	
+	/**
+	 * @return Names of the sequences in the fasta file, in file order
+	 */
+	public List<String> getSequenceNames() {
+		return new ArrayList<String>(index.keySet());
+	}
+	
+	/**
+	 * @param name Sequence name
+	 * @return Mapped bytes of the sequence
+	 * @throws IOException
+	 */
+	private MappedByteBuffer getBuffer(String name) throws IOException {
+		MappedByteBuffer rtrn = buffers.get(name);
+		if(rtrn != null) {
+			return rtrn;
+		}
+		IndexEntry entry = index.get(name);
+		if(entry == null) {
+			throw new IllegalArgumentException("Sequence " + name + " is not in " + fastaFile);
+		}
+		long size = entry.length == 0 ? 0 : entry.byteOffset(entry.length - 1) + 1;
+		if(size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Sequence " + name + " is too long to map");
+		}
+		RandomAccessFile file = new RandomAccessFile(fastaFile, "r");
+		try {
+			rtrn = file.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, size);
+		} finally {
+			file.close();
+		}
+		buffers.put(name, rtrn);
+		return rtrn;
+	}
+	
+	/**
+	 * @param name Sequence name
+	 * @param start Zero based start position
+	 * @param end Position after the last position
+	 * @return The bases of the interval as ASCII characters, as they appear in the file
+	 * @throws IOException
+	 */
+	public byte[] getBases(String name, int start, int end) throws IOException {
+		byte[] rtrn = new byte[end - start];
+		getBases(name, start, end, rtrn, 0);
+		return rtrn;
+	}
+	
+	/**
+	 * Copy the bases of an interval into an array
+	 * @param name Sequence name
+	 * @param start Zero based start position
+	 * @param end Position after the last position
+	 * @param dest Array to copy into
+	 * @param destPos Position in the array of the first base
+	 * @throws IOException
+	 */
+	private void getBases(String name, int start, int end, byte[] dest, int destPos) throws IOException {
+		IndexEntry entry = index.get(name);
+		if(entry == null) {
+			throw new IllegalArgumentException("Sequence " + name + " is not in " + fastaFile);
+		}
+		if(start < 0 || end > entry.length || end < start) {
+			throw new IllegalArgumentException("Interval " + name + ":" + start + "-" + end + " is outside sequence of length " + entry.length);
+		}
+		// Threads share the mapped buffer, so copy through a view with its own position
+		ByteBuffer buffer = getBuffer(name).duplicate();
+		int pos = start;
+		while(pos < end) {
+			// Copy the rest of the line
+			int lineEnd = Math.min(end, (pos / entry.lineBases + 1) * entry.lineBases);
+			buffer.position((int) entry.byteOffset(pos));
+			buffer.get(dest, destPos, lineEnd - pos);
+			destPos += lineEnd - pos;
+			pos = lineEnd;
+		}
+	}
+	
+	/**
+	 * Get the spliced sequence of an annotation, reverse complemented if the annotation is on the minus strand
+	 * @param annotation Annotation
+	 * @return The bases of the annotation's blocks, 5' to 3' on the annotation's strand
+	 * @throws IOException
+	 */
+	public byte[] getBases(Annotation annotation) throws IOException {
+		byte[] rtrn = new byte[annotation.size()];
+		int pos = 0;
+		Iterator<SingleInterval> blocks = annotation.getBlocks();
+		while(blocks.hasNext()) {
+			SingleInterval block = blocks.next();
+			getBases(annotation.getReferenceName(), block.getReferenceStartPosition(), block.getReferenceEndPosition(), rtrn, pos);
+			pos += block.size();
+		}
+		if(annotation.getOrientation() == Strand.NEGATIVE) {
+			reverseComplement(rtrn);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Reverse complement a sequence in place
+	 * @param bases Sequence as ASCII characters
+	 */
+	public static void reverseComplement(byte[] bases) {
+		for(int i = 0, j = bases.length - 1; i <= j; i++, j--) {
+			byte b = COMPLEMENT[bases[i] & 0xff];
+			bases[i] = COMPLEMENT[bases[j] & 0xff];
+			bases[j] = b;
+		}
+	}
+	
+	/**
+	 * @return Table of the complement of each character, preserving case, with other characters unchanged
+	 */
+	private static byte[] complementTable() {
+		byte[] rtrn = new byte[256];
+		for(int i = 0; i < 256; i++) {
+			rtrn[i] = (byte) i;
+		}
+		String from = "ACGTNacgtn";
+		String to = "TGCANtgcan";
+		for(int i = 0; i < from.length(); i++) {
+			rtrn[from.charAt(i)] = (byte) to.charAt(i);
+		}
+		return rtrn;
+	}
+	
+}
@@ -8,34 +8,60 @@ import guttmanlab.core.annotation.io.BEDFileIO;
 import guttmanlab.core.annotationcollection.AnnotationCollection;
 import guttmanlab.core.annotationcollection.FeatureCollection;
 import guttmanlab.core.coordinatespace.CoordinateSpace;
-import guttmanlab.core.sequence.FastaFileIOImpl;
 import guttmanlab.core.sequence.Sequence;
 import guttmanlab.core.util.CommandLineParser;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
 public class ORFFinder {
 	
-	private Map<String, Sequence> chrsByName;
+	private IndexedFasta genome; // Genome sequence, read on demand
 	private CoordinateSpace coordSpace;
 	private String referenceSizeFile;
+	private int numThreads = 1; // Number of threads for finding ORFs of genes in a bed file
+	private static final int GENE_CHUNK_SIZE = 500; // Number of consecutive genes in each parallel task
+	private boolean sortedOutput = true; // Whether to write ORF bed files in sorted order
+	private boolean[] startCodons = IS_START_CODON; // Whether each codon code is a start codon for ORFs of annotations
+	private int minORFCodons = 0; // Minimum ORF length in codons including the stop codon
+	private int maxORFCodons = Integer.MAX_VALUE; // Maximum ORF length in codons including the stop codon
+	private boolean longestORFPerStop = false; // Whether to only report the longest ORF ending at each stop codon
 	
 	private static Logger logger = Logger.getLogger(ORFFinder.class.getName());
 	public static final Pattern START_CODON= Pattern.compile("ATG",  Pattern.CASE_INSENSITIVE);
 	public static final String [] STOP_CODONS =  {"TAG", "TAA", "TGA"};
+	private static final byte[] BASE_CODES = baseCodes(); // 2 bit code of each nucleotide character, or -1 for other characters
+	private static final boolean[] IS_START_CODON = codonTable(new String[] {"ATG"}); // Whether each codon code is a start codon
+	private static final boolean[] IS_STOP_CODON = codonTable(STOP_CODONS); // Whether each codon code is a stop codon
 	
-	public ORFFinder(String genomeFasta, String chrSizeFile) {
+	/**
+	 * The genome is not loaded into memory; the sequence of each annotation is read from the fasta file when needed
+	 * @param genomeFasta Genome fasta file, indexed with a .fai file or indexed on the first use
+	 * @param chrSizeFile Chromosome size file
+	 * @throws IOException
+	 */
+	public ORFFinder(String genomeFasta, String chrSizeFile) throws IOException {
 		referenceSizeFile = chrSizeFile;
 		coordSpace = new CoordinateSpace(referenceSizeFile);
-		chrsByName = new FastaFileIOImpl().readFromFileByName(genomeFasta);
+		genome = new IndexedFasta(genomeFasta);
 	}
 	
 	/**
@@ -47,16 +73,19 @@ public class ORFFinder {
 		if(!annotation.getOrientation().equals(Strand.POSITIVE) && !annotation.getOrientation().equals(Strand.NEGATIVE)) {
 			throw new IllegalArgumentException("Gene strand must be known.");
 		}
-		Sequence chr = chrsByName.get(annotation.getReferenceName());
-		if(chr == null) {
+		if(!genome.containsSequence(annotation.getReferenceName())) {
 			String chrNames = "";
-			for(@SuppressWarnings("unused") String c : chrsByName.keySet()) {
-				chrNames += c = " ";
+			for(String c : genome.getSequenceNames()) {
+				chrNames += c + " ";
 			}
 			throw new IllegalArgumentException("Can't get ORFs for gene " + annotation.getName() + " because reference " + annotation.getReferenceName() + " is missing. Sequence names: " + chrNames);
 		}
-		Sequence geneSeq = chr.getSubsequence(annotation);
-		Collection<int[]> orfCoords = findAllORFs(geneSeq);
+		Collection<int[]> orfCoords;
+		try {
+			orfCoords = findORFs(genome.getBases(annotation), startCodons, minORFCodons, maxORFCodons, longestORFPerStop);
+		} catch(IOException e) {
+			throw new IllegalStateException("Error reading sequence of " + annotation.getName() + ": " + e.getMessage(), e);
+		}
 		FeatureCollection<Gene> rtrn = new FeatureCollection<Gene>(coordSpace);
 		Iterator<SingleInterval> blockIter = annotation.getBlocks();
 		Collection<Annotation> blocks = new ArrayList<Annotation>();
@@ -103,25 +132,60 @@ public class ORFFinder {
 		return isStopCodon;
 	}
 	
+	/**
+	 * @param numThreads Number of threads for finding ORFs of genes in a bed file
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param codons Codons that can start an ORF, e.g. ATG and near-cognate starts CTG, GTG, TTG
+	 */
+	public void setStartCodons(String[] codons) {
+		if(codons.length == 0) {
+			throw new IllegalArgumentException("Must specify at least one start codon");
+		}
+		boolean[] table = codonTable(codons);
+		for(int i = 0; i < table.length; i++) {
+			if(table[i] && IS_STOP_CODON[i]) {
+				throw new IllegalArgumentException("Start codon can't be a stop codon");
+			}
+		}
+		startCodons = table;
+	}
+	
+	/**
+	 * Only find ORFs with length in a range
+	 * @param minCodons Minimum length in codons including the stop codon
+	 * @param maxCodons Maximum length in codons including the stop codon
+	 */
+	public void setORFLengthRange(int minCodons, int maxCodons) {
+		if(minCodons < 0 || maxCodons < minCodons) {
+			throw new IllegalArgumentException("Invalid ORF length range: " + minCodons + "-" + maxCodons);
+		}
+		minORFCodons = minCodons;
+		maxORFCodons = maxCodons;
+	}
+	
+	/**
+	 * @param longestOnly Whether to only find the longest ORF ending at each stop codon, among ORFs in the length range
+	 */
+	public void setLongestORFPerStop(boolean longestOnly) {
+		longestORFPerStop = longestOnly;
+	}
+	
 	/**
 	 * Get all ORFs for genes in the bed file
 	 * @param bedFile Bed file
 	 * @return Collection of ORFs for all genes
 	 * @throws IOException
 	 */
-	private AnnotationCollection<Gene> getAllORFsForGenes(String bedFile) throws IOException {
-		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(bedFile, referenceSizeFile);
-		FeatureCollection<Gene> rtrn = new FeatureCollection<Gene>(coordSpace);
-		Iterator<Gene> iter = genes.sortedIterator();
-		while(iter.hasNext()) {
-			Gene gene = iter.next();
-			AnnotationCollection<Gene> orfs = getAllORFs(gene);
-			Iterator<Gene> orfIter = orfs.sortedIterator();
-			while(orfIter.hasNext()) {
-				rtrn.add(orfIter.next());
-			}
-		}
-		return rtrn;
+	public AnnotationCollection<Gene> getAllORFsForGenes(String bedFile) throws IOException {
+		return getORFsForGenes(bedFile, false);
 	}
 	
 	/**
@@ -130,14 +194,57 @@ public class ORFFinder {
 	 * @return Collection of uORFs for all genes
 	 * @throws IOException
 	 */
-	private AnnotationCollection<Gene> getAllUpstreamORFsForGenes(String bedFile) throws IOException {
+	public AnnotationCollection<Gene> getAllUpstreamORFsForGenes(String bedFile) throws IOException {
+		return getORFsForGenes(bedFile, true);
+	}
+	
+	/**
+	 * Get ORFs for genes in the bed file
+	 * With more than one thread, chunks of consecutive genes are processed in parallel with a bounded number of chunks in progress,
+	 * and the ORFs are added to the collection, which keeps them sorted, as each chunk finishes
+	 * @param bedFile Bed file
+	 * @param upstreamOnly Only get upstream ORFs
+	 * @return Collection of ORFs for all genes
+	 * @throws IOException
+	 */
+	private AnnotationCollection<Gene> getORFsForGenes(String bedFile, boolean upstreamOnly) throws IOException {
 		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(bedFile, referenceSizeFile);
-		FeatureCollection<Gene> rtrn = new FeatureCollection<Gene>(coordSpace);
+		final FeatureCollection<Gene> rtrn = new FeatureCollection<Gene>(coordSpace);
 		Iterator<Gene> iter = genes.sortedIterator();
-		while(iter.hasNext()) {
-			Gene gene = iter.next();
-			AnnotationCollection<UpstreamORF> uorfs = UpstreamORF.findAllUpstreamORFs(this, gene);
-			Iterator<UpstreamORF> orfIter = uorfs.sortedIterator();
+		if(numThreads <= 1) {
+			while(iter.hasNext()) {
+				for(Gene orf : getORFs(iter.next(), upstreamOnly)) {
+					rtrn.add(orf);
+				}
+			}
+			return rtrn;
+		}
+		logger.info("Finding ORFs with " + numThreads + " threads...");
+		findORFsInParallel(iter, new GeneORFConsumer() {
+			@Override
+			public void add(Gene gene, List<Gene> orfs) {
+				for(Gene orf : orfs) {
+					rtrn.add(orf);
+				}
+			}
+		}, upstreamOnly);
+		return rtrn;
+	}
+	
+	/**
+	 * @param gene Gene
+	 * @param upstreamOnly Only get upstream ORFs
+	 * @return ORFs or upstream ORFs of the gene
+	 */
+	private List<Gene> getORFs(Gene gene, boolean upstreamOnly) {
+		List<Gene> rtrn = new ArrayList<Gene>();
+		if(upstreamOnly) {
+			Iterator<UpstreamORF> orfIter = UpstreamORF.findAllUpstreamORFs(this, gene).sortedIterator();
+			while(orfIter.hasNext()) {
+				rtrn.add(orfIter.next());
+			}
+		} else {
+			Iterator<Gene> orfIter = getAllORFs(gene).sortedIterator();
 			while(orfIter.hasNext()) {
 				rtrn.add(orfIter.next());
 			}
@@ -145,33 +252,277 @@ public class ORFFinder {
 		return rtrn;
 	}
 	
+	/**
+	 * Order of ORFs in sorted output: reference, start, end, strand, CDS start, CDS end, name
+	 */
+	private static final Comparator<Gene> ORF_ORDER = new Comparator<Gene>() {
+		@Override
+		public int compare(Gene o1, Gene o2) {
+			int c = o1.getReferenceName().compareTo(o2.getReferenceName());
+			if(c != 0) return c;
+			c = Integer.compare(o1.getReferenceStartPosition(), o2.getReferenceStartPosition());
+			if(c != 0) return c;
+			c = Integer.compare(o1.getReferenceEndPosition(), o2.getReferenceEndPosition());
+			if(c != 0) return c;
+			c = o1.getOrientation().compareTo(o2.getOrientation());
+			if(c != 0) return c;
+			c = Integer.compare(o1.getCodingRegion().getReferenceStartPosition(), o2.getCodingRegion().getReferenceStartPosition());
+			if(c != 0) return c;
+			c = Integer.compare(o1.getCodingRegion().getReferenceEndPosition(), o2.getCodingRegion().getReferenceEndPosition());
+			if(c != 0) return c;
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
+	
+	/**
+	 * @param sortedOutput Whether to write ORF bed files in sorted order rather than in the order the ORFs are found
+	 */
+	public void setSortedOutput(boolean sortedOutput) {
+		this.sortedOutput = sortedOutput;
+	}
+	
 	/**
 	 * Write a bed file of all ORFs for genes in the bed file
 	 * @param inputBed Input bed file
 	 * @param outputBed Bed file to write
 	 * @throws IOException
 	 */
-	private void writeORFsToFile(String inputBed, String outputBed) throws IOException {
-		AnnotationCollection<Gene> orfs = getAllORFsForGenes(inputBed);
-		writeToFile(orfs, outputBed);
+	public void writeORFsToFile(String inputBed, String outputBed) throws IOException {
+		writeORFsToFile(inputBed, outputBed, false);
 	}
 	
 	/**
-	 * Write a bed file of all ORFs for genes in the bed file
+	 * Write a bed file of all upstream ORFs for genes in the bed file
 	 * @param inputBed Input bed file
 	 * @param outputBed Bed file to write
 	 * @throws IOException
 	 */
-	private void writeUpstreamORFsToFile(String inputBed, String outputBed) throws IOException {
-		AnnotationCollection<Gene> orfs = getAllUpstreamORFsForGenes(inputBed);
-		writeToFile(orfs, outputBed);
+	public void writeUpstreamORFsToFile(String inputBed, String outputBed) throws IOException {
+		writeORFsToFile(inputBed, outputBed, true);
 	}
-
-	private static void writeToFile(AnnotationCollection<Gene> orfs, String outputBed) throws IOException {
+	
+	/**
+	 * Write a bed file of ORFs for genes in the bed file, writing the ORFs of each gene as they are found
+	 * instead of collecting all ORFs first
+	 * With more than one thread, chunks of consecutive genes are processed in parallel and written in gene order,
+	 * with a bounded number of chunks in progress
+	 * @param inputBed Input bed file
+	 * @param outputBed Bed file to write
+	 * @param upstreamOnly Only get upstream ORFs
+	 * @throws IOException
+	 */
+	private void writeORFsToFile(String inputBed, String outputBed, boolean upstreamOnly) throws IOException {
+		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(inputBed, referenceSizeFile);
 		logger.info("");
-		logger.info("Writing " + orfs.getNumAnnotations() + " ORFs to file " + outputBed + "...");
-		BEDFileIO.writeToFile(orfs, outputBed);
-		logger.info("Done writing bed file.");
+		logger.info("Writing ORFs to file " + outputBed + "...");
+		ORFBedWriter writer = new ORFBedWriter(outputBed, sortedOutput);
+		boolean done = false;
+		try {
+			Iterator<Gene> iter = genes.sortedIterator();
+			if(numThreads <= 1) {
+				while(iter.hasNext()) {
+					Gene gene = iter.next();
+					writer.add(gene, getORFs(gene, upstreamOnly));
+				}
+			} else {
+				findORFsInParallel(iter, writer, upstreamOnly);
+			}
+			writer.close();
+			done = true;
+		} finally {
+			// Don't leave a truncated bed file that looks complete
+			if(!done) writer.abort();
+		}
+	}
+	
+	/**
+	 * Receives the ORFs of each gene in gene order
+	 * @author prussell
+	 *
+	 */
+	private interface GeneORFConsumer {
+		
+		/**
+		 * Add the ORFs of the next gene
+		 * @param gene Gene
+		 * @param orfs ORFs of the gene
+		 * @throws IOException
+		 */
+		public void add(Gene gene, List<Gene> orfs) throws IOException;
+		
+	}
+	
+	/**
+	 * Find the ORFs of chunks of consecutive genes in parallel and pass them to the consumer in gene order,
+	 * with a bounded number of chunks in progress
+	 * @param genes Genes in sorted order
+	 * @param consumer Consumer to pass ORFs to
+	 * @param upstreamOnly Only get upstream ORFs
+	 * @throws IOException
+	 */
+	private void findORFsInParallel(Iterator<Gene> genes, GeneORFConsumer consumer, boolean upstreamOnly) throws IOException {
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		// Chunks in gene order; bounded so finished ORFs don't pile up ahead of the consumer
+		Deque<Future<List<List<Gene>>>> pending = new ArrayDeque<Future<List<List<Gene>>>>();
+		Deque<List<Gene>> pendingGenes = new ArrayDeque<List<Gene>>();
+		try {
+			List<Gene> chunk = new ArrayList<Gene>(GENE_CHUNK_SIZE);
+			while(genes.hasNext()) {
+				chunk.add(genes.next());
+				if(chunk.size() == GENE_CHUNK_SIZE || !genes.hasNext()) {
+					pending.add(workers.submit(geneORFsTask(chunk, upstreamOnly)));
+					pendingGenes.add(chunk);
+					chunk = new ArrayList<Gene>(GENE_CHUNK_SIZE);
+				}
+				while(pending.size() >= 2 * numThreads || (!genes.hasNext() && !pending.isEmpty())) {
+					List<List<Gene>> orfs = pending.poll().get();
+					List<Gene> chunkGenes = pendingGenes.poll();
+					for(int i = 0; i < chunkGenes.size(); i++) {
+						consumer.add(chunkGenes.get(i), orfs.get(i));
+					}
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while finding ORFs", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @param genes Chunk of genes
+	 * @param upstreamOnly Only get upstream ORFs
+	 * @return Task that finds the ORFs of each gene, in the same order as the genes
+	 */
+	private Callable<List<List<Gene>>> geneORFsTask(final List<Gene> genes, final boolean upstreamOnly) {
+		return new Callable<List<List<Gene>>>() {
+			@Override
+			public List<List<Gene>> call() {
+				List<List<Gene>> rtrn = new ArrayList<List<Gene>>(genes.size());
+				for(Gene gene : genes) {
+					rtrn.add(getORFs(gene, upstreamOnly));
+				}
+				return rtrn;
+			}
+		};
+	}
+	
+	/**
+	 * Writes the ORFs of each gene to a bed file as they are found
+	 * For sorted output, ORFs are held in a reorder buffer until no later gene can have an ORF that sorts before them
+	 * Each ORF spans its gene's blocks, so when genes are added in sorted order, the buffer only holds ORFs of genes
+	 * with the same start position, and memory does not grow with the total number of ORFs
+	 * ORFs are sorted by ORF_ORDER within each reference sequence, with reference sequences in the order of the genes
+	 * @author prussell
+	 *
+	 */
+	private static class ORFBedWriter implements GeneORFConsumer {
+		
+		private TableWriter writer; // Output bed file
+		private String outputBed; // Name of output bed file
+		private boolean sorted; // Whether to sort the output
+		private PriorityQueue<Gene> buffer; // ORFs not yet written, for sorted output
+		private String reference; // Reference sequence of the last gene
+		private int lastGeneStart; // Start position of the last gene
+		private long numWritten; // Number of ORFs written
+		private int maxBuffered; // Largest number of ORFs held in the buffer
+		
+		/**
+		 * @param outputBed Bed file to write
+		 * @param sorted Whether to sort the output
+		 * @throws IOException
+		 */
+		public ORFBedWriter(String outputBed, boolean sorted) throws IOException {
+			writer = new TableWriter(outputBed);
+			this.outputBed = outputBed;
+			this.sorted = sorted;
+			buffer = new PriorityQueue<Gene>(16, ORF_ORDER);
+		}
+		
+		/**
+		 * Add the ORFs of the next gene
+		 * @param gene Gene, which must not sort before the previous gene if sorting the output
+		 * @param orfs ORFs of the gene
+		 * @throws IOException
+		 */
+		@Override
+		public void add(Gene gene, List<Gene> orfs) throws IOException {
+			if(!sorted) {
+				for(Gene orf : orfs) {
+					write(orf);
+				}
+				return;
+			}
+			String geneRef = gene.getReferenceName();
+			int geneStart = gene.getReferenceStartPosition();
+			if(!geneRef.equals(reference)) {
+				flush(Integer.MAX_VALUE);
+				reference = geneRef;
+			} else if(geneStart < lastGeneStart) {
+				throw new IllegalStateException("Genes must be added in sorted order: " + gene.getName());
+			}
+			lastGeneStart = geneStart;
+			// Later ORFs start at or after this gene's start
+			flush(geneStart);
+			buffer.addAll(orfs);
+			maxBuffered = Math.max(maxBuffered, buffer.size());
+		}
+		
+		/**
+		 * Write buffered ORFs that start before a position
+		 * @param position Position
+		 * @throws IOException
+		 */
+		private void flush(int position) throws IOException {
+			while(!buffer.isEmpty() && buffer.peek().getReferenceStartPosition() < position) {
+				write(buffer.poll());
+			}
+		}
+		
+		/**
+		 * @param orf ORF to write
+		 * @throws IOException
+		 */
+		private void write(Gene orf) throws IOException {
+			writer.writeLine(orf.toBED());
+			numWritten++;
+			if(numWritten % 1000000 == 0) {
+				logger.info("Wrote " + numWritten + " ORFs");
+			}
+		}
+		
+		/**
+		 * Write any buffered ORFs and close the file
+		 * @throws IOException
+		 */
+		public void close() throws IOException {
+			flush(Integer.MAX_VALUE);
+			writer.close();
+			logger.info("Wrote " + numWritten + " ORFs." + (sorted ? " At most " + maxBuffered + " ORFs were held for sorting." : ""));
+		}
+		
+		/**
+		 * Close the file after a failure and delete it, since it is incomplete
+		 */
+		public void abort() {
+			try {
+				writer.close();
+			} catch(IOException e) {
+				logger.warn("Could not close " + outputBed + ": " + e.getMessage());
+			}
+			if(new File(outputBed).delete()) {
+				logger.warn("Deleted incomplete output file " + outputBed + ".");
+			} else {
+				logger.warn("Could not delete incomplete output file " + outputBed + ".");
+			}
+		}
+		
 	}
 	
 	/**
@@ -180,26 +531,121 @@ public class ORFFinder {
 	 * @return Collection of int[] objects containing start and end coordinates of ORFs
 	 */
 	public static Collection<int[]> findAllORFs(Sequence sequence) {
-		String seqString = sequence.getSequenceBases();
-		Collection<int[]> allORFs=new ArrayList<int[]>();
-		Matcher m = START_CODON.matcher(seqString);
-		while(m.find()) {
-			// Check each start codon
-			int startCodonPos = m.start();
-			int thisORFEnd = startCodonPos;
-			boolean foundStopCodon = false;
-			while(thisORFEnd < seqString.length() - 3  && !foundStopCodon) {
-				// Go up to first stop codon
-				String currentCodon = seqString.substring(thisORFEnd, thisORFEnd+3);
-				thisORFEnd += 3;
-				foundStopCodon = isStopCodon(currentCodon);
+		return findAllORFs(sequence.getSequenceBases().getBytes(Charset.forName("US-ASCII")));
+	}
+	
+	/**
+	 * Get all open reading frames of a sequence
+	 * Each ORF runs from an ATG through the first in-frame stop codon, not counting a stop codon that is the last three bases
+	 * @param bases The nucleotide sequence as ASCII characters, case insensitive
+	 * @return Collection of int[] objects containing start and end coordinates of ORFs, in order of start position
+	 */
+	public static Collection<int[]> findAllORFs(byte[] bases) {
+		return findORFs(bases, IS_START_CODON, 0, Integer.MAX_VALUE, false);
+	}
+	
+	/**
+	 * Get open reading frames of a sequence
+	 * Each frame is scanned once, keeping the start codons seen since the last stop codon in the frame;
+	 * a stop codon closes an ORF for each of them that passes the filters, so filtered ORFs are never created
+	 * Each ORF runs from a start codon through the first in-frame stop codon, not counting a stop codon that is the last three bases
+	 * @param bases The nucleotide sequence as ASCII characters, case insensitive
+	 * @param isStartCodon Whether each codon code is a start codon
+	 * @param minCodons Minimum ORF length in codons including the stop codon
+	 * @param maxCodons Maximum ORF length in codons including the stop codon
+	 * @param longestPerStop Only report the longest ORF in the length range ending at each stop codon
+	 * @return Collection of int[] objects containing start and end coordinates of ORFs, in order of start position
+	 */
+	private static Collection<int[]> findORFs(byte[] bases, boolean[] isStartCodon, int minCodons, int maxCodons, boolean longestPerStop) {
+		List<List<int[]>> orfsByFrame = new ArrayList<List<int[]>>();
+		int[] pendingStarts = new int[16];
+		for(int frame = 0; frame < 3; frame++) {
+			List<int[]> frameORFs = new ArrayList<int[]>();
+			int numPending = 0;
+			for(int pos = frame; pos < bases.length - 3; pos += 3) {
+				int codon = codonCode(bases, pos);
+				if(codon < 0) continue;
+				if(IS_STOP_CODON[codon]) {
+					// Pending starts are in increasing order, so from longest to shortest ORF
+					for(int i = 0; i < numPending; i++) {
+						int numCodons = (pos + 3 - pendingStarts[i]) / 3;
+						if(numCodons > maxCodons) continue;
+						if(numCodons < minCodons) break;
+						int[] orf = {pendingStarts[i], pos + 3};
+						frameORFs.add(orf);
+						if(longestPerStop) break;
+					}
+					numPending = 0;
+				} else if(isStartCodon[codon]) {
+					if(numPending == pendingStarts.length) {
+						pendingStarts = Arrays.copyOf(pendingStarts, 2 * numPending);
+					}
+					pendingStarts[numPending++] = pos;
+				}
 			}
-			if(foundStopCodon){
-				int[] pos={startCodonPos, thisORFEnd};
-				allORFs.add(pos);
+			orfsByFrame.add(frameORFs);
+		}
+		// Merge the frames by start position
+		Collection<int[]> rtrn = new ArrayList<int[]>(orfsByFrame.get(0).size() + orfsByFrame.get(1).size() + orfsByFrame.get(2).size());
+		int[] next = new int[3];
+		while(true) {
+			int frame = -1;
+			for(int f = 0; f < 3; f++) {
+				if(next[f] < orfsByFrame.get(f).size() && (frame < 0 || orfsByFrame.get(f).get(next[f])[0] < orfsByFrame.get(frame).get(next[frame])[0])) {
+					frame = f;
+				}
 			}
+			if(frame < 0) break;
+			rtrn.add(orfsByFrame.get(frame).get(next[frame]++));
 		}
-		return allORFs;
+		return rtrn;
+	}
+	
+	/**
+	 * @param bases Nucleotide sequence
+	 * @param pos Position of first base of codon
+	 * @return Index of the codon in the codon tables, or -1 if the codon has a character other than A, C, G, T
+	 */
+	private static int codonCode(byte[] bases, int pos) {
+		int b1 = BASE_CODES[bases[pos] & 0xff];
+		int b2 = BASE_CODES[bases[pos + 1] & 0xff];
+		int b3 = BASE_CODES[bases[pos + 2] & 0xff];
+		if(b1 < 0 || b2 < 0 || b3 < 0) return -1;
+		return (b1 << 4) | (b2 << 2) | b3;
+	}
+	
+	/**
+	 * @return Table of 2 bit codes for upper and lower case A, C, G, T, with -1 for all other characters
+	 */
+	private static byte[] baseCodes() {
+		byte[] rtrn = new byte[256];
+		Arrays.fill(rtrn, (byte) -1);
+		String bases = "ACGT";
+		for(int i = 0; i < bases.length(); i++) {
+			rtrn[bases.charAt(i)] = (byte) i;
+			rtrn[Character.toLowerCase(bases.charAt(i))] = (byte) i;
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param codons Codons
+	 * @return Table over all codon codes of whether the codon is one of the codons
+	 */
+	private static boolean[] codonTable(String[] codons) {
+		boolean[] rtrn = new boolean[64];
+		for(String codon : codons) {
+			byte[] bases = codon.getBytes(Charset.forName("US-ASCII"));
+			if(bases.length != 3) {
+				throw new IllegalArgumentException("Codon must have 3 bases: " + codon);
+			}
+			int code = codonCode(bases, 0);
+			if(code < 0) {
+				throw new IllegalArgumentException("Invalid codon: " + codon);
+			}
+			rtrn[code] = true;
+		}
+		return rtrn;
 	}
 	
 	public static void main(String[] args) throws IOException {
@@ -210,14 +656,31 @@ public class ORFFinder {
 		p.addStringArg("-c", "Chromosome size file", true);
 		p.addStringArg("-g", "Genome fasta", true);
 		p.addBooleanArg("-u", "Only get upstream ORFs", false, false);
+		p.addIntArg("-t", "Number of threads", false, 1);
+		p.addBooleanArg("-us", "Write ORFs in the order they are found instead of sorted", false, false);
+		p.addStringArg("-sc", "Comma separated start codons", false, "ATG");
+		p.addIntArg("-minl", "Minimum ORF length in codons including the stop codon", false, 0);
+		p.addIntArg("-maxl", "Maximum ORF length in codons including the stop codon", false, Integer.MAX_VALUE);
+		p.addBooleanArg("-l", "Only get the longest ORF ending at each stop codon", false, false);
 		p.parse(args);
 		String inputBed = p.getStringArg("-i");
 		String outputBed = p.getStringArg("-o");
 		String chrSizeFile = p.getStringArg("-c");
 		String genomeFasta = p.getStringArg("-g");
 		boolean uorf = p.getBooleanArg("-u");
+		int numThreads = p.getIntArg("-t");
+		boolean unsorted = p.getBooleanArg("-us");
+		String[] startCodons = p.getStringArg("-sc").split(",");
+		int minLength = p.getIntArg("-minl");
+		int maxLength = p.getIntArg("-maxl");
+		boolean longestPerStop = p.getBooleanArg("-l");
 		
 		ORFFinder of = new ORFFinder(genomeFasta, chrSizeFile);
+		of.setNumThreads(numThreads);
+		of.setSortedOutput(!unsorted);
+		of.setStartCodons(startCodons);
+		of.setORFLengthRange(minLength, maxLength);
+		of.setLongestORFPerStop(longestPerStop);
 		if(uorf) of.writeUpstreamORFsToFile(inputBed, outputBed);
 		else of.writeORFsToFile(inputBed, outputBed);
 
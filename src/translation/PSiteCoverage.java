@@ -0,0 +1,297 @@
+package translation;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.Gene;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotationcollection.AnnotationCollection;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+import guttmanlab.core.util.StringParser;
+
+/**
+ * Assigns each ribosome footprint to a single P-site position, using an offset from the read 5' end that depends on read length,
+ * and stores the P-site positions as FootprintCoverage so region counts are prefix sum lookups
+ * Because each read is counted at one position, overlapping regions such as a uORF and the CDS each get only the reads
+ * whose P-site is in that region, and all regions are counted from the same pass through the bam file
+ * Offsets are read from a table or estimated from the peak of 5' end positions upstream of annotated start codons.
+ * In the second case the offsets are estimated in the same pass that collects the positions:
+ * 5' ends are kept separately for each read length and shifted once the offsets are known
+ * @author prussell
+ *
+ */
+public class PSiteCoverage {
+	
+	private static final int MAX_OFFSET = 30; // Largest P-site offset considered when estimating offsets
+	private static final int MIN_READS_FOR_OFFSET = 100; // Minimum reads near start codons to estimate the offset for a read length
+	private static Logger logger = Logger.getLogger(PSiteCoverage.class.getName());
+	
+	private Map<Integer, ReadLengthPositions> positionsByLength; // 5' end positions of the reads of each length being counted
+	private int minReadLength; // Shortest read length to count
+	private int maxReadLength; // Longest read length to count
+	private long numReads; // Total number of reads
+	private long[][] startCodonDistances; // For each read length, number of reads by distance from 5' end to a start codon, or null if not estimating
+	
+	/**
+	 * 5' end positions of the reads of one length
+	 * @author prussell
+	 *
+	 */
+	private static class ReadLengthPositions {
+		
+		private Map<String, FootprintCoverage.PositionList> plus = new HashMap<String, FootprintCoverage.PositionList>();
+		private Map<String, FootprintCoverage.PositionList> minus = new HashMap<String, FootprintCoverage.PositionList>();
+		
+	}
+	
+	/**
+	 * @param minReadLength Shortest read length to count
+	 * @param maxReadLength Longest read length to count
+	 */
+	private PSiteCoverage(int minReadLength, int maxReadLength) {
+		if(minReadLength < 1 || maxReadLength < minReadLength) {
+			throw new IllegalArgumentException("Invalid read length range: " + minReadLength + "-" + maxReadLength);
+		}
+		this.minReadLength = minReadLength;
+		this.maxReadLength = maxReadLength;
+		positionsByLength = new HashMap<Integer, ReadLengthPositions>();
+	}
+	
+	/**
+	 * Read a table of P-site offsets
+	 * Each line has a read length and the offset of the P-site from the 5' end for reads of that length; lines starting with # are ignored
+	 * @param file Table file
+	 * @return Map of read length to offset
+	 * @throws IOException
+	 */
+	public static Map<Integer, Integer> readOffsets(String file) throws IOException {
+		Map<Integer, Integer> rtrn = new TreeMap<Integer, Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		StringParser s = new StringParser();
+		String line;
+		while((line = reader.readLine()) != null) {
+			if(line.trim().isEmpty() || line.startsWith("#")) continue;
+			s.parse(line);
+			if(s.getFieldCount() != 2) {
+				reader.close();
+				throw new IllegalArgumentException("P-site offset line must have read length and offset: " + line);
+			}
+			rtrn.put(Integer.valueOf(s.asInt(0)), Integer.valueOf(s.asInt(1)));
+		}
+		reader.close();
+		if(rtrn.isEmpty()) {
+			throw new IllegalArgumentException("No P-site offsets in " + file);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Count reads at their P-site with offsets from a table
+	 * Reads whose length is not in the table are not counted
+	 * @param data Ribosome reads
+	 * @param offsets Map of read length to P-site offset from the 5' end
+	 * @return Coverage of P-site positions
+	 */
+	public static FootprintCoverage fromOffsets(BAMSingleReadCollection data, Map<Integer, Integer> offsets) {
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for(Integer length : offsets.keySet()) {
+			min = Math.min(min, length.intValue());
+			max = Math.max(max, length.intValue());
+		}
+		PSiteCoverage p = new PSiteCoverage(min, max);
+		p.readPositions(data, null, null);
+		return p.toCoverage(offsets);
+	}
+	
+	/**
+	 * Count reads at their P-site with offsets estimated from the reads themselves
+	 * For each read length, the offset is the most common distance from the 5' end to a downstream annotated start codon,
+	 * up to MAX_OFFSET; read lengths with too few reads near start codons are not counted
+	 * @param data Ribosome reads
+	 * @param genes Genes whose CDS starts are used to estimate offsets
+	 * @param minReadLength Shortest read length to count
+	 * @param maxReadLength Longest read length to count
+	 * @return Coverage of P-site positions
+	 */
+	public static FootprintCoverage fromStartCodonPeaks(BAMSingleReadCollection data, AnnotationCollection<Gene> genes, int minReadLength, int maxReadLength) {
+		PSiteCoverage p = new PSiteCoverage(minReadLength, maxReadLength);
+		Map<String, FootprintCoverage.PositionList> plusStarts = new HashMap<String, FootprintCoverage.PositionList>();
+		Map<String, FootprintCoverage.PositionList> minusStarts = new HashMap<String, FootprintCoverage.PositionList>();
+		CloseableIterator<Gene> iter = genes.sortedIterator();
+		while(iter.hasNext()) {
+			Gene gene = iter.next();
+			Annotation cds = gene.getCodingRegion();
+			if(cds == null || cds.size() == 0) continue;
+			if(cds.getOrientation() == Strand.POSITIVE) {
+				FootprintCoverage.getPositionList(plusStarts, cds.getReferenceName()).add(cds.getReferenceStartPosition());
+			} else if(cds.getOrientation() == Strand.NEGATIVE) {
+				FootprintCoverage.getPositionList(minusStarts, cds.getReferenceName()).add(cds.getReferenceEndPosition() - 1);
+			}
+		}
+		iter.close();
+		p.startCodonDistances = new long[maxReadLength - minReadLength + 1][MAX_OFFSET + 1];
+		p.readPositions(data, toSortedArrays(plusStarts), toSortedArrays(minusStarts));
+		return p.toCoverage(p.estimateOffsets());
+	}
+	
+	/**
+	 * @param positions Position lists by reference
+	 * @return Sorted distinct positions by reference
+	 */
+	private static Map<String, int[]> toSortedArrays(Map<String, FootprintCoverage.PositionList> positions) {
+		Map<String, int[]> rtrn = new HashMap<String, int[]>();
+		for(String ref : positions.keySet()) {
+			rtrn.put(ref, positions.get(ref).toSortedDistinctArray());
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Make one pass through the bam file, saving the 5' end of each read in the length range,
+	 * and if start codons are given, tallying the distance from each 5' end to the nearest downstream start codon
+	 * @param data Reads
+	 * @param plusStarts Sorted start codon positions on the plus strand by reference, or null if not estimating offsets
+	 * @param minusStarts Sorted start codon positions on the minus strand by reference, or null if not estimating offsets
+	 */
+	private void readPositions(BAMSingleReadCollection data, Map<String, int[]> plusStarts, Map<String, int[]> minusStarts) {
+		logger.info("Loading footprint 5' end positions for read lengths " + minReadLength + "-" + maxReadLength + "...");
+		CloseableIterator<SAMFragment> iter = data.sortedIterator();
+		while(iter.hasNext()) {
+			SAMFragment read = iter.next();
+			numReads++;
+			if(numReads % 10000000 == 0) {
+				logger.info("Finished " + numReads + " reads");
+			}
+			int length = read.size();
+			if(length < minReadLength || length > maxReadLength) continue;
+			Strand strand = read.getOrientation();
+			if(strand != Strand.POSITIVE && strand != Strand.NEGATIVE) continue;
+			ReadLengthPositions positions = positionsByLength.get(Integer.valueOf(length));
+			if(positions == null) {
+				positions = new ReadLengthPositions();
+				positionsByLength.put(Integer.valueOf(length), positions);
+			}
+			String ref = read.getReferenceName();
+			if(strand == Strand.POSITIVE) {
+				int fivePrime = read.getReferenceStartPosition();
+				FootprintCoverage.getPositionList(positions.plus, ref).add(fivePrime);
+				if(plusStarts != null) {
+					int[] starts = plusStarts.get(ref);
+					if(starts != null) {
+						// Nearest start codon at or after the 5' end
+						int i = firstAtOrAfter(starts, fivePrime);
+						if(i < starts.length && starts[i] - fivePrime <= MAX_OFFSET) {
+							startCodonDistances[length - minReadLength][starts[i] - fivePrime]++;
+						}
+					}
+				}
+			} else {
+				int fivePrime = read.getReferenceEndPosition() - 1;
+				FootprintCoverage.getPositionList(positions.minus, ref).add(fivePrime);
+				if(minusStarts != null) {
+					int[] starts = minusStarts.get(ref);
+					if(starts != null) {
+						// Nearest start codon at or before the 5' end
+						int i = firstAtOrAfter(starts, fivePrime + 1) - 1;
+						if(i >= 0 && fivePrime - starts[i] <= MAX_OFFSET) {
+							startCodonDistances[length - minReadLength][fivePrime - starts[i]]++;
+						}
+					}
+				}
+			}
+		}
+		iter.close();
+		logger.info("Done loading footprint positions from " + numReads + " reads.");
+	}
+	
+	/**
+	 * @param sorted Sorted array
+	 * @param value Value
+	 * @return Index of the first element at least the value, or the array length if none
+	 */
+	private static int firstAtOrAfter(int[] sorted, int value) {
+		int lo = 0;
+		int hi = sorted.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(sorted[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * @return For each read length with enough reads near start codons, the most common distance from 5' end to start codon
+	 */
+	private Map<Integer, Integer> estimateOffsets() {
+		Map<Integer, Integer> rtrn = new TreeMap<Integer, Integer>();
+		for(int length = minReadLength; length <= maxReadLength; length++) {
+			long[] distances = startCodonDistances[length - minReadLength];
+			long total = 0;
+			int peak = 0;
+			for(int d = 0; d <= MAX_OFFSET; d++) {
+				total += distances[d];
+				if(distances[d] > distances[peak]) peak = d;
+			}
+			if(total < MIN_READS_FOR_OFFSET) {
+				logger.warn("Only " + total + " reads of length " + length + " near start codons. Not counting reads of this length.");
+				continue;
+			}
+			logger.info("Read length " + length + "\tP-site offset " + peak + "\t(" + distances[peak] + " of " + total + " reads near start codons)");
+			rtrn.put(Integer.valueOf(length), Integer.valueOf(peak));
+		}
+		if(rtrn.isEmpty()) {
+			throw new IllegalStateException("Could not estimate P-site offset for any read length");
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Shift the saved 5' end positions to P-sites and build the coverage
+	 * @param offsets Map of read length to P-site offset; reads of other lengths are not counted
+	 * @return Coverage of P-site positions
+	 */
+	private FootprintCoverage toCoverage(Map<Integer, Integer> offsets) {
+		Map<String, FootprintCoverage.PositionList> plus = new HashMap<String, FootprintCoverage.PositionList>();
+		Map<String, FootprintCoverage.PositionList> minus = new HashMap<String, FootprintCoverage.PositionList>();
+		for(Integer length : positionsByLength.keySet()) {
+			Integer offset = offsets.get(length);
+			if(offset == null) continue;
+			ReadLengthPositions positions = positionsByLength.get(length);
+			shift(positions.plus, plus, offset.intValue());
+			shift(positions.minus, minus, -offset.intValue());
+		}
+		positionsByLength.clear();
+		return new FootprintCoverage(plus, minus, numReads);
+	}
+	
+	/**
+	 * Add shifted positions to position lists
+	 * @param from Positions to shift, by reference
+	 * @param to Position lists to add to, by reference
+	 * @param shift Amount to add to each position
+	 */
+	private static void shift(Map<String, FootprintCoverage.PositionList> from, Map<String, FootprintCoverage.PositionList> to, int shift) {
+		for(String ref : from.keySet()) {
+			FootprintCoverage.PositionList source = from.get(ref);
+			FootprintCoverage.PositionList dest = FootprintCoverage.getPositionList(to, ref);
+			for(int i = 0; i < source.size(); i++) {
+				dest.add(source.get(i) + shift);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,245 @@
+package translation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.util.CloseableIterator;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.SAMFragment;
+
+/**
+ * Counts reads over a set of regions in several bam files at once, with the work split by reference sequence across a pool of threads
+ * Each task counts one reference sequence of one bam file with a SortedRegionCounter; only reference sequences with regions are counted
+ * Bam readers are not thread safe, so each worker thread opens one reader per bam file and reuses it for all its tasks;
+ * the readers are closed when the pool shuts down
+ * Tasks for all the bam files share the pool, so the bam files are processed concurrently
+ * @author prussell
+ *
+ */
+public class ParallelRegionCounter {
+	
+	private int numThreads; // Number of worker threads
+	private static Logger logger = Logger.getLogger(ParallelRegionCounter.class.getName());
+	
+	/**
+	 * @param numThreads Number of worker threads
+	 */
+	public ParallelRegionCounter(int numThreads) {
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * Read counts for one bam file
+	 * @author prussell
+	 *
+	 */
+	public static class Counts {
+		
+		private int[] regionCounts; // Number of reads overlapping each region
+		
+		/**
+		 * @param numRegions Number of regions
+		 */
+		Counts(int numRegions) {
+			regionCounts = new int[numRegions];
+		}
+		
+		/**
+		 * @param regionIndex Index of region in the list of regions
+		 * @return Number of reads overlapping the region
+		 */
+		public int getCount(int regionIndex) {
+			return regionCounts[regionIndex];
+		}
+		
+	}
+	
+	/**
+	 * Bam readers opened by the worker threads, one per thread and bam file
+	 * @author prussell
+	 *
+	 */
+	private static class WorkerReaders {
+		
+		private List<SAMFileReader> allReaders = Collections.synchronizedList(new ArrayList<SAMFileReader>()); // Every reader opened by any thread
+		private ThreadLocal<Map<String, SAMFileReader>> threadReaders = new ThreadLocal<Map<String, SAMFileReader>>() {
+			@Override
+			protected Map<String, SAMFileReader> initialValue() {
+				return new HashMap<String, SAMFileReader>();
+			}
+		};
+		
+		/**
+		 * @param bamFile Bam file
+		 * @return The calling thread's reader for the bam file, opened on first use
+		 */
+		public SAMFileReader get(String bamFile) {
+			Map<String, SAMFileReader> readers = threadReaders.get();
+			SAMFileReader rtrn = readers.get(bamFile);
+			if(rtrn == null) {
+				rtrn = new SAMFileReader(new File(bamFile));
+				readers.put(bamFile, rtrn);
+				allReaders.add(rtrn);
+			}
+			return rtrn;
+		}
+		
+		/**
+		 * Close every reader; call only when no worker is using them
+		 */
+		public void closeAll() {
+			for(SAMFileReader reader : allReaders) {
+				reader.close();
+			}
+			allReaders.clear();
+		}
+		
+	}
+	
+	/**
+	 * Count the reads overlapping each region in each bam file
+	 * @param bamFiles Bam files, which must be sorted and indexed
+	 * @param regions Regions to count reads over
+	 * @return Counts for each bam file, in the same order as the bam files
+	 * @throws IOException
+	 */
+	public List<Counts> countReads(List<String> bamFiles, List<? extends Annotation> regions) throws IOException {
+		
+		// Split the regions by reference sequence
+		Map<String, List<Annotation>> regionsByReference = new LinkedHashMap<String, List<Annotation>>();
+		Map<String, List<Integer>> indicesByReference = new HashMap<String, List<Integer>>();
+		for(int i = 0; i < regions.size(); i++) {
+			Annotation region = regions.get(i);
+			String ref = region.getReferenceName();
+			if(!regionsByReference.containsKey(ref)) {
+				regionsByReference.put(ref, new ArrayList<Annotation>());
+				indicesByReference.put(ref, new ArrayList<Integer>());
+			}
+			regionsByReference.get(ref).add(region);
+			indicesByReference.get(ref).add(Integer.valueOf(i));
+		}
+		
+		logger.info("Counting reads over " + regions.size() + " regions on " + regionsByReference.size() + " reference sequences in " + bamFiles.size() + " bam files with " + numThreads + " threads...");
+		
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		WorkerReaders readers = new WorkerReaders();
+		List<Map<String, Future<SortedRegionCounter>>> results = new ArrayList<Map<String, Future<SortedRegionCounter>>>();
+		List<Counts> rtrn = new ArrayList<Counts>();
+		try {
+			for(String bamFile : bamFiles) {
+				Map<String, Future<SortedRegionCounter>> bamResults = new HashMap<String, Future<SortedRegionCounter>>();
+				for(String ref : regionsByReference.keySet()) {
+					bamResults.put(ref, workers.submit(countTask(readers, bamFile, ref, regionsByReference.get(ref))));
+				}
+				results.add(bamResults);
+			}
+			for(Map<String, Future<SortedRegionCounter>> bamResults : results) {
+				Counts counts = new Counts(regions.size());
+				for(String ref : bamResults.keySet()) {
+					SortedRegionCounter counter = bamResults.get(ref).get();
+					List<Integer> indices = indicesByReference.get(ref);
+					for(int i = 0; i < indices.size(); i++) {
+						counts.regionCounts[indices.get(i).intValue()] = counter.getCount(i);
+					}
+				}
+				rtrn.add(counts);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting reads", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			workers.shutdownNow();
+			// Wait for running tasks to stop using the readers before closing them
+			try {
+				while(!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+					logger.info("Waiting for counting tasks to finish...");
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			readers.closeAll();
+		}
+		
+		logger.info("Done counting reads.");
+		return rtrn;
+		
+	}
+	
+	/**
+	 * @param readers The worker threads' bam readers
+	 * @param bamFile Bam file
+	 * @param ref Reference sequence
+	 * @param regions Regions on the reference sequence
+	 * @return Task that counts the reads on the reference sequence with the worker thread's reader for the bam file
+	 * If the bam file has no reference sequence with this name, the regions get a count of zero
+	 */
+	private static Callable<SortedRegionCounter> countTask(final WorkerReaders readers, final String bamFile, final String ref, final List<Annotation> regions) {
+		return new Callable<SortedRegionCounter>() {
+			@Override
+			public SortedRegionCounter call() {
+				SortedRegionCounter counter = new SortedRegionCounter(regions);
+				SAMFileReader reader = readers.get(bamFile);
+				if(reader.getFileHeader().getSequenceIndex(ref) < 0) {
+					return counter;
+				}
+				CloseableIterator<SAMFragment> iter = fragments(reader.query(ref, 0, 0, false));
+				try {
+					counter.countReads(iter);
+				} finally {
+					iter.close();
+				}
+				return counter;
+			}
+		};
+	}
+	
+	/**
+	 * @param records Bam records
+	 * @return Iterator over the records as fragments
+	 */
+	private static CloseableIterator<SAMFragment> fragments(final SAMRecordIterator records) {
+		return new CloseableIterator<SAMFragment>() {
+			@Override
+			public boolean hasNext() {
+				return records.hasNext();
+			}
+			@Override
+			public SAMFragment next() {
+				return new SAMFragment(records.next());
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			@Override
+			public void close() {
+				records.close();
+			}
+		};
+	}
+	
+}
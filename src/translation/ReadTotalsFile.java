@@ -0,0 +1,147 @@
+package translation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Total read counts for a bam file, saved in a sidecar file next to the bam file so later runs don't have to recompute them
+ * The genome total is saved for the bam file, and exon totals are saved for each annotation they were computed over
+ * Saved totals are ignored if the bam file has changed, and exon totals are ignored if the annotation file has changed,
+ * as judged by file size and modification time
+ * @author prussell
+ *
+ */
+public class ReadTotalsFile {
+	
+	private File file; // The sidecar file
+	private String header; // Header line identifying the bam file
+	private double genomeTotal = -1; // Total reads mapped to the genome, or -1 if not saved
+	private Map<String, Double> exonTotals; // Total reads mapped to exons, by annotation file identifier and strandedness
+	private static final String FORMAT_VERSION = "v2"; // Files from older versions may hold totals counted differently by multithreaded runs, so they are ignored
+	private boolean modified; // Whether there are totals that have not been saved
+	private static Logger logger = Logger.getLogger(ReadTotalsFile.class.getName());
+	
+	/**
+	 * Read any totals saved for the bam file
+	 * @param bamFile Bam file
+	 * @throws IOException
+	 */
+	public ReadTotalsFile(String bamFile) throws IOException {
+		File bam = new File(bamFile).getCanonicalFile();
+		file = new File(bam.getPath() + ".totals");
+		header = "#" + FORMAT_VERSION + "\t" + fileIdentifier(bam);
+		exonTotals = new LinkedHashMap<String, Double>();
+		if(!file.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line = reader.readLine();
+		if(!header.equals(line)) {
+			logger.info("Bam file has changed or totals were saved by an older version in " + file.getPath() + ". Ignoring saved totals.");
+			reader.close();
+			return;
+		}
+		while((line = reader.readLine()) != null) {
+			String[] fields = line.split("\t");
+			try {
+				if(fields[0].equals("genome") && fields.length == 2) {
+					genomeTotal = Double.parseDouble(fields[1]);
+				} else if(fields[0].equals("exon") && fields.length == 3) {
+					exonTotals.put(fields[1], Double.valueOf(fields[2]));
+				}
+			} catch(NumberFormatException e) {
+				logger.warn("Skipping invalid line in " + file.getPath() + ": " + line);
+			}
+		}
+		reader.close();
+	}
+	
+	/**
+	 * @param f File
+	 * @return String identifying the current version of the file by path, size and modification time
+	 */
+	private static String fileIdentifier(File f) {
+		return f.getPath() + ":" + f.length() + ":" + f.lastModified();
+	}
+	
+	/**
+	 * @param annotationBed Annotation bed file
+	 * @param strandSpecific Whether the total counts reads on the same strand only
+	 * @return String identifying the current version of the annotation file and the strandedness
+	 * @throws IOException
+	 */
+	private static String exonTotalIdentifier(String annotationBed, boolean strandSpecific) throws IOException {
+		return fileIdentifier(new File(annotationBed).getCanonicalFile()) + ":" + (strandSpecific ? "ss" : "ns");
+	}
+	
+	/**
+	 * @return Saved total number of reads mapped to the genome, or -1 if none
+	 */
+	public double getGenomeTotal() {
+		return genomeTotal;
+	}
+	
+	/**
+	 * @param total Total number of reads mapped to the genome
+	 */
+	public void setGenomeTotal(double total) {
+		genomeTotal = total;
+		modified = true;
+	}
+	
+	/**
+	 * @param annotationBed Annotation bed file
+	 * @param strandSpecific Whether the total counts reads on the same strand only
+	 * @return Saved total number of reads mapped to exons in the current version of the annotation, or -1 if none
+	 * @throws IOException
+	 */
+	public double getExonTotal(String annotationBed, boolean strandSpecific) throws IOException {
+		Double rtrn = exonTotals.get(exonTotalIdentifier(annotationBed, strandSpecific));
+		return rtrn == null ? -1 : rtrn.doubleValue();
+	}
+	
+	/**
+	 * @param annotationBed Annotation bed file
+	 * @param strandSpecific Whether the total counts reads on the same strand only
+	 * @param total Total number of reads mapped to exons
+	 * @throws IOException
+	 */
+	public void setExonTotal(String annotationBed, boolean strandSpecific, double total) throws IOException {
+		exonTotals.put(exonTotalIdentifier(annotationBed, strandSpecific), Double.valueOf(total));
+		modified = true;
+	}
+	
+	/**
+	 * Write the totals to the sidecar file if any have changed
+	 * If the file can't be written, log a warning and continue
+	 */
+	public void save() {
+		if(!modified) {
+			return;
+		}
+		try {
+			BufferedWriter w = new BufferedWriter(new FileWriter(file));
+			w.write(header + "\n");
+			if(genomeTotal >= 0) {
+				w.write("genome\t" + genomeTotal + "\n");
+			}
+			for(String annotation : exonTotals.keySet()) {
+				w.write("exon\t" + annotation + "\t" + exonTotals.get(annotation) + "\n");
+			}
+			w.close();
+			modified = false;
+			logger.info("Saved read totals to " + file.getPath() + ".");
+		} catch(IOException e) {
+			logger.warn("Could not save read totals to " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+	
+}
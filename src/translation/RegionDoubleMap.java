@@ -0,0 +1,172 @@
+package translation;
+
+/**
+ * Thread safe map from region keys to primitive double values, with open addressing so values are not boxed
+ * Keys are spread over independently locked stripes by hash code, so threads working on different regions rarely wait for each other
+ * Lookups with a reused probe key do not allocate
+ * @author prussell
+ *
+ */
+public class RegionDoubleMap {
+	
+	private static final int NUM_STRIPES = 32; // Number of independently locked tables; a power of 2
+	private Stripe[] stripes; // Tables holding the keys, selected by hash code
+	
+	/**
+	 * Create an empty map
+	 */
+	public RegionDoubleMap() {
+		stripes = new Stripe[NUM_STRIPES];
+		for(int i = 0; i < NUM_STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+	
+	/**
+	 * @param key Key
+	 * @return The stripe holding the key
+	 */
+	private Stripe stripe(RegionKey key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+	}
+	
+	/**
+	 * @param key Key
+	 * @return Whether the map contains the key
+	 */
+	public boolean containsKey(RegionKey key) {
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			return stripe.keys[stripe.slot(key)] != null;
+		}
+	}
+	
+	/**
+	 * Keys are never removed, so a key found by containsKey() can always be looked up afterwards
+	 * @param key Key, which must be in the map
+	 * @return The value for the key, which can be any value including NaN
+	 */
+	public double get(RegionKey key) {
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			int i = stripe.slot(key);
+			if(stripe.keys[i] == null) {
+				throw new IllegalArgumentException("Key is not in map: " + key);
+			}
+			return stripe.values[i];
+		}
+	}
+	
+	/**
+	 * Add a key or replace its value
+	 * @param key Key, which must not be modified afterwards
+	 * @param value Value
+	 */
+	public void put(RegionKey key, double value) {
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			stripe.put(key, value);
+		}
+	}
+	
+	/**
+	 * Add a key only if it is not already in the map, as one atomic step
+	 * @param key Key, which must not be modified afterwards
+	 * @param value Value
+	 * @return True if the key was added, false if it was already in the map and its value was left unchanged
+	 */
+	public boolean putIfAbsent(RegionKey key, double value) {
+		Stripe stripe = stripe(key);
+		synchronized(stripe) {
+			if(stripe.keys[stripe.slot(key)] != null) {
+				return false;
+			}
+			stripe.put(key, value);
+			return true;
+		}
+	}
+	
+	/**
+	 * @return Number of keys
+	 */
+	public int size() {
+		int rtrn = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				rtrn += stripe.size;
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Open addressing table for one stripe
+	 * Callers must hold the stripe's lock
+	 * @author prussell
+	 *
+	 */
+	private static class Stripe {
+		
+		private RegionKey[] keys; // Keys, or null for empty slots
+		private double[] values; // Value for the key in each slot
+		private int size; // Number of keys
+		private int mask; // Number of slots minus one; the number of slots is a power of 2
+		
+		public Stripe() {
+			keys = new RegionKey[16];
+			values = new double[16];
+			mask = 15;
+		}
+		
+		/**
+		 * @param key Key
+		 * @return Slot holding the key, or the empty slot where it would go
+		 */
+		public int slot(RegionKey key) {
+			// Skip the hash bits used to select the stripe
+			int h = key.hashCode();
+			int i = ((h ^ (h >>> 16)) >>> 5) & mask;
+			while(keys[i] != null && !keys[i].equals(key)) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		/**
+		 * Add a key or replace its value
+		 * @param key Key
+		 * @param value Value
+		 */
+		public void put(RegionKey key, double value) {
+			int i = slot(key);
+			if(keys[i] == null) {
+				keys[i] = key;
+				size++;
+			}
+			values[i] = value;
+			if(2 * size > keys.length) {
+				resize();
+			}
+		}
+		
+		/**
+		 * Double the number of slots and reinsert the keys
+		 */
+		private void resize() {
+			RegionKey[] oldKeys = keys;
+			double[] oldValues = values;
+			keys = new RegionKey[2 * oldKeys.length];
+			values = new double[2 * oldKeys.length];
+			mask = keys.length - 1;
+			for(int j = 0; j < oldKeys.length; j++) {
+				if(oldKeys[j] == null) continue;
+				int i = slot(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+		
+	}
+	
+}
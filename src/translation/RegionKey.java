@@ -0,0 +1,201 @@
+package translation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.Annotation.Strand;
+import guttmanlab.core.annotation.SingleInterval;
+
+/**
+ * Compact key identifying a region by reference sequence, strand and block coordinates, for caching values computed over the region
+ * Reference names are interned to integer IDs, and the hash code is computed once when the key is set
+ * A key can be reused as a probe by calling set() for each lookup, so looking up a cached value does not build a new key;
+ * keys stored in a map must be copies that are not modified afterwards
+ * @author prussell
+ *
+ */
+public final class RegionKey {
+	
+	private static Map<String, Integer> referenceIds = new ConcurrentHashMap<String, Integer>(); // Interned ID of each reference name
+	private static List<String> referenceNames = new ArrayList<String>(); // Reference name for each ID
+	
+	private int referenceId; // Interned reference name, or -1 if the region has no reference
+	private Strand strand; // Strand
+	private int[] coords; // Block start and end positions, interleaved; may be longer than needed
+	private int numCoords; // Number of positions in use in coords
+	private int hash; // Hash code of the current contents
+	
+	/**
+	 * Create an empty key to fill with set()
+	 */
+	public RegionKey() {
+		coords = new int[8];
+	}
+	
+	/**
+	 * @param region Region
+	 * @param strand Strand to use in place of the region's strand
+	 */
+	public RegionKey(Annotation region, Strand strand) {
+		this();
+		set(region, strand);
+	}
+	
+	/**
+	 * @param referenceName Reference name
+	 * @param strand Strand
+	 * @param coords Block start and end positions, interleaved
+	 */
+	RegionKey(String referenceName, Strand strand, int[] coords) {
+		referenceId = getReferenceId(referenceName);
+		this.strand = strand;
+		this.coords = coords;
+		numCoords = coords.length;
+		hash = computeHash();
+	}
+	
+	/**
+	 * @param referenceName Reference name
+	 * @return Interned ID for the reference name
+	 */
+	private static int getReferenceId(String referenceName) {
+		Integer id = referenceIds.get(referenceName);
+		if(id != null) {
+			return id.intValue();
+		}
+		synchronized(referenceNames) {
+			id = referenceIds.get(referenceName);
+			if(id == null) {
+				id = Integer.valueOf(referenceNames.size());
+				referenceNames.add(referenceName);
+				referenceIds.put(referenceName, id);
+			}
+			return id.intValue();
+		}
+	}
+	
+	/**
+	 * Replace the contents of this key with a region
+	 * @param region Region
+	 * @param strand Strand to use in place of the region's strand
+	 * @return This key
+	 */
+	public RegionKey set(Annotation region, Strand strand) {
+		String ref = region.getReferenceName();
+		referenceId = ref == null ? -1 : getReferenceId(ref);
+		this.strand = strand;
+		numCoords = 0;
+		Iterator<SingleInterval> blocks = region.getBlocks();
+		while(blocks.hasNext()) {
+			SingleInterval block = blocks.next();
+			if(numCoords + 2 > coords.length) {
+				coords = Arrays.copyOf(coords, 2 * coords.length);
+			}
+			coords[numCoords++] = block.getReferenceStartPosition();
+			coords[numCoords++] = block.getReferenceEndPosition();
+		}
+		hash = computeHash();
+		return this;
+	}
+	
+	/**
+	 * @return Hash code of the current contents
+	 */
+	private int computeHash() {
+		int h = 31 * referenceId + (strand == null ? 0 : strand.ordinal() + 1);
+		for(int i = 0; i < numCoords; i++) {
+			h = 31 * h + coords[i];
+		}
+		return h;
+	}
+	
+	/**
+	 * @return A copy of this key that can be stored in a map
+	 */
+	public RegionKey copy() {
+		RegionKey rtrn = new RegionKey();
+		rtrn.referenceId = referenceId;
+		rtrn.strand = strand;
+		rtrn.coords = Arrays.copyOf(coords, numCoords);
+		rtrn.numCoords = numCoords;
+		rtrn.hash = hash;
+		return rtrn;
+	}
+	
+	/**
+	 * @return Reference name, or null if the region has no reference
+	 */
+	public String getReferenceName() {
+		if(referenceId < 0) {
+			return null;
+		}
+		synchronized(referenceNames) {
+			return referenceNames.get(referenceId);
+		}
+	}
+	
+	/**
+	 * @return Strand
+	 */
+	public Strand getStrand() {
+		return strand;
+	}
+	
+	/**
+	 * @return Number of blocks
+	 */
+	public int getNumBlocks() {
+		return numCoords / 2;
+	}
+	
+	/**
+	 * @param blockIndex Block index
+	 * @return Start position of the block
+	 */
+	public int getBlockStart(int blockIndex) {
+		return coords[2 * blockIndex];
+	}
+	
+	/**
+	 * @param blockIndex Block index
+	 * @return End position of the block
+	 */
+	public int getBlockEnd(int blockIndex) {
+		return coords[2 * blockIndex + 1];
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if(this == o) return true;
+		if(!(o instanceof RegionKey)) return false;
+		RegionKey other = (RegionKey) o;
+		if(hash != other.hash || referenceId != other.referenceId || strand != other.strand || numCoords != other.numCoords) {
+			return false;
+		}
+		for(int i = 0; i < numCoords; i++) {
+			if(coords[i] != other.coords[i]) return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(getReferenceName()).append(":").append(strand);
+		for(int i = 0; i < numCoords; i += 2) {
+			sb.append(":").append(coords[i]).append("-").append(coords[i + 1]);
+		}
+		return sb.toString();
+	}
+	
+}
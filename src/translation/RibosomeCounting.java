@@ -0,0 +1,107 @@
+package translation;
+
+import java.io.IOException;
+
+import guttmanlab.core.annotation.io.BEDFileIO;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+
+/**
+ * How ribosome reads are counted in a region: by overlap with the bam file, by read 5' end, or by P-site
+ * The 5' end and P-site modes load the counted position of every read with one pass through the bam file,
+ * and the ribosome genome and exon totals are counted from the same positions
+ * @author prussell
+ *
+ */
+public class RibosomeCounting {
+	
+	private enum Mode {
+		OVERLAP,
+		FIVE_PRIME_END,
+		P_SITE;
+	}
+	
+	private Mode mode;
+	private String offsetTable; // Table of read length and P-site offset, or null to estimate offsets
+	private String geneBed; // Bed file of genes whose CDS starts are used to estimate P-site offsets
+	private int minReadLength; // Shortest read length to estimate a P-site offset for
+	private int maxReadLength; // Longest read length to estimate a P-site offset for
+	
+	/**
+	 * Count reads overlapping each region by querying the bam file
+	 */
+	public static final RibosomeCounting OVERLAP = new RibosomeCounting(Mode.OVERLAP, null, null, 0, 0);
+	
+	/**
+	 * Count reads by 5' end position
+	 */
+	public static final RibosomeCounting FIVE_PRIME_END = new RibosomeCounting(Mode.FIVE_PRIME_END, null, null, 0, 0);
+	
+	/**
+	 * @param mode Counting mode
+	 * @param offsetTable Table of read length and P-site offset, or null to estimate offsets
+	 * @param geneBed Bed file of genes whose CDS starts are used to estimate P-site offsets
+	 * @param minReadLength Shortest read length to estimate a P-site offset for
+	 * @param maxReadLength Longest read length to estimate a P-site offset for
+	 */
+	private RibosomeCounting(Mode mode, String offsetTable, String geneBed, int minReadLength, int maxReadLength) {
+		this.mode = mode;
+		this.offsetTable = offsetTable;
+		this.geneBed = geneBed;
+		this.minReadLength = minReadLength;
+		this.maxReadLength = maxReadLength;
+	}
+	
+	/**
+	 * Count reads by P-site position
+	 * Reads whose length has no P-site offset are not counted, in regions or in the totals
+	 * @param offsetTable Table of read length and P-site offset, or null to estimate offsets from reads near annotated start codons
+	 * @param geneBed Bed file of genes whose CDS starts are used to estimate offsets, if no offset table is given
+	 * @param minReadLength Shortest read length to estimate an offset for, if no offset table is given
+	 * @param maxReadLength Longest read length to estimate an offset for, if no offset table is given
+	 * @return P-site counting
+	 */
+	public static RibosomeCounting pSite(String offsetTable, String geneBed, int minReadLength, int maxReadLength) {
+		return new RibosomeCounting(Mode.P_SITE, offsetTable, geneBed, minReadLength, maxReadLength);
+	}
+	
+	/**
+	 * @return Whether reads are counted from in-memory coverage instead of by overlap with the bam file
+	 */
+	public boolean usesCoverage() {
+		return mode != Mode.OVERLAP;
+	}
+	
+	/**
+	 * Load the counted position of every read
+	 * @param data Ribosome reads
+	 * @param chrSizeFile Chromosome size file for loading genes
+	 * @return Coverage of counted positions, or null if counting by overlap
+	 * @throws IOException
+	 */
+	public FootprintCoverage loadCoverage(BAMSingleReadCollection data, String chrSizeFile) throws IOException {
+		switch(mode) {
+		case FIVE_PRIME_END:
+			return new FootprintCoverage(data);
+		case P_SITE:
+			if(offsetTable != null) {
+				return PSiteCoverage.fromOffsets(data, PSiteCoverage.readOffsets(offsetTable));
+			}
+			return PSiteCoverage.fromStartCodonPeaks(data, BEDFileIO.loadFromFile(geneBed, chrSizeFile), minReadLength, maxReadLength);
+		default:
+			return null;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		switch(mode) {
+		case FIVE_PRIME_END:
+			return "5' end";
+		case P_SITE:
+			return "P-site";
+		default:
+			return "overlap";
+		}
+	}
+	
+}
@@ -0,0 +1,151 @@
+package translation;
+
+import java.util.Arrays;
+
+import broad.core.math.ScanStatistics;
+
+/**
+ * Scan statistic P values for a fixed global lambda and total size, memoized by read count and window size
+ * Regions with the same count and size share one calculation, so scoring many regions does not repeat the P value math
+ * Optionally, P values for large windows are interpolated between window sizes on a geometric grid,
+ * with log P value linear in log window size, which bounds the number of distinct calculations at the cost of exactness
+ * @author prussell
+ *
+ */
+public class ScanPvalueTable {
+	
+	private double lambda; // Global lambda
+	private double totalSize; // Total size of the space
+	private int interpolationMinWindow; // Windows at least this size are interpolated, or 0 for no interpolation
+	private double gridStep; // Ratio between successive window sizes on the interpolation grid
+	private long[] keys; // Count and window size packed into a long, or EMPTY
+	private double[] values; // P value for each key
+	private int size; // Number of keys
+	private int mask; // Number of slots minus one; the number of slots is a power of 2
+	private static final long EMPTY = -1;
+	
+	/**
+	 * Compute exact P values
+	 * @param lambda Global lambda
+	 * @param totalSize Total size of the space
+	 */
+	public ScanPvalueTable(double lambda, double totalSize) {
+		this(lambda, totalSize, 0, 0);
+	}
+	
+	/**
+	 * @param lambda Global lambda
+	 * @param totalSize Total size of the space
+	 * @param interpolationMinWindow Interpolate P values for windows at least this size, or 0 for exact P values for all windows
+	 * @param gridPointsPerDoubling Number of grid window sizes for each doubling of the window size, if interpolating
+	 */
+	public ScanPvalueTable(double lambda, double totalSize, int interpolationMinWindow, int gridPointsPerDoubling) {
+		if(interpolationMinWindow < 0) {
+			throw new IllegalArgumentException("Minimum window size for interpolation must be nonnegative: " + interpolationMinWindow);
+		}
+		if(interpolationMinWindow > 0 && gridPointsPerDoubling < 1) {
+			throw new IllegalArgumentException("Number of grid points per doubling must be at least 1: " + gridPointsPerDoubling);
+		}
+		this.lambda = lambda;
+		this.totalSize = totalSize;
+		this.interpolationMinWindow = interpolationMinWindow;
+		gridStep = interpolationMinWindow > 0 ? Math.pow(2, 1.0 / gridPointsPerDoubling) : 0;
+		keys = new long[1024];
+		Arrays.fill(keys, EMPTY);
+		values = new double[1024];
+		mask = 1023;
+	}
+	
+	/**
+	 * @param count Read count in the window
+	 * @param window Window size
+	 * @return Scan P value, approximate if the window is interpolated
+	 */
+	public double getPval(int count, int window) {
+		if(interpolationMinWindow == 0 || window <= interpolationMinWindow) {
+			return getExactPval(count, window);
+		}
+		// Grid points on either side of the window size
+		double steps = Math.log((double) window / interpolationMinWindow) / Math.log(gridStep);
+		int lowStep = (int) Math.floor(steps);
+		int lowWindow = (int) Math.round(interpolationMinWindow * Math.pow(gridStep, lowStep));
+		int highWindow = (int) Math.round(interpolationMinWindow * Math.pow(gridStep, lowStep + 1));
+		if(window <= lowWindow || highWindow <= lowWindow) {
+			return getExactPval(count, window);
+		}
+		if(window >= highWindow) {
+			return getExactPval(count, highWindow);
+		}
+		double lowPval = getExactPval(count, lowWindow);
+		double highPval = getExactPval(count, highWindow);
+		if(lowPval <= 0 || highPval <= 0) {
+			// Can't interpolate on the log scale
+			return getExactPval(count, window);
+		}
+		// P values change by orders of magnitude between window sizes, so interpolate log P value against log window size
+		double fraction = Math.log((double) window / lowWindow) / Math.log((double) highWindow / lowWindow);
+		return Math.exp(Math.log(lowPval) + fraction * (Math.log(highPval) - Math.log(lowPval)));
+	}
+	
+	/**
+	 * @param count Read count in the window
+	 * @param window Window size
+	 * @return Scan P value, calculated once for each count and window size
+	 */
+	private double getExactPval(int count, int window) {
+		long key = ((long) count << 32) | (window & 0xffffffffL);
+		synchronized(this) {
+			int i = slot(key);
+			if(keys[i] == key) {
+				return values[i];
+			}
+		}
+		// Calculate without holding the lock so threads scoring other regions don't wait
+		// Two threads may calculate the same P value, which is harmless
+		double rtrn = ScanStatistics.calculatePVal(count, lambda, window, totalSize);
+		synchronized(this) {
+			int i = slot(key);
+			if(keys[i] != key) {
+				keys[i] = key;
+				values[i] = rtrn;
+				size++;
+				if(2 * size > keys.length) {
+					resize();
+				}
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param key Key
+	 * @return Slot holding the key, or the empty slot where it would go
+	 */
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h >>> 32) & mask;
+		while(keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+	
+	/**
+	 * Double the number of slots and reinsert the keys
+	 */
+	private void resize() {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		keys = new long[2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		values = new double[2 * oldKeys.length];
+		mask = keys.length - 1;
+		for(int j = 0; j < oldKeys.length; j++) {
+			if(oldKeys[j] == EMPTY) continue;
+			int i = slot(oldKeys[j]);
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+	
+}
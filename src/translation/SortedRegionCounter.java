@@ -0,0 +1,239 @@
+package translation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.annotation.SAMFragment;
+import guttmanlab.core.annotationcollection.BAMSingleReadCollection;
+
+/**
+ * Counts reads overlapping each of a set of regions with a single sequential pass through a coordinate sorted bam file,
+ * instead of a separate bam query for each region
+ * Regions on each reference are stored sorted by start position, and the regions whose span contains the current read position
+ * are kept in a min-heap by end position, so each read is only checked against regions it could overlap
+ * even when some regions are very long
+ * A read is counted for a region if it overlaps the region's blocks and strand, as in BAMSingleReadCollection.numOverlappers(region, false)
+ * @author prussell
+ *
+ */
+public class SortedRegionCounter {
+	
+	private List<Annotation> regions; // Regions in the order they were added
+	private int[] counts; // Read count for each region
+	private Map<String, ReferenceRegions> regionsByReference; // Sorted regions on each reference
+	private long numReads; // Number of reads seen
+	private long numReadsOverlappingRegions; // Number of reads that overlap at least one region
+	private static Logger logger = Logger.getLogger(SortedRegionCounter.class.getName());
+	
+	/**
+	 * @param regions Regions to count reads over. Regions of size zero are skipped and get a count of zero.
+	 */
+	public SortedRegionCounter(Collection<? extends Annotation> regions) {
+		this.regions = new ArrayList<Annotation>(regions);
+		counts = new int[this.regions.size()];
+		Map<String, List<Integer>> indicesByReference = new HashMap<String, List<Integer>>();
+		for(int i = 0; i < this.regions.size(); i++) {
+			Annotation region = this.regions.get(i);
+			if(region.size() == 0) continue;
+			String ref = region.getReferenceName();
+			if(!indicesByReference.containsKey(ref)) {
+				indicesByReference.put(ref, new ArrayList<Integer>());
+			}
+			indicesByReference.get(ref).add(Integer.valueOf(i));
+		}
+		regionsByReference = new HashMap<String, ReferenceRegions>();
+		for(String ref : indicesByReference.keySet()) {
+			regionsByReference.put(ref, new ReferenceRegions(indicesByReference.get(ref)));
+		}
+	}
+	
+	/**
+	 * The regions on one reference sequence sorted by start position, with the state of a sweep through the reads on the reference
+	 * As the sweep moves through reads in order of start position, regions are added to a min-heap ordered by end position
+	 * when a read reaches their start, and removed once a read starts at or after their end,
+	 * so each read is only checked against regions whose span contains the sweep position
+	 * @author prussell
+	 *
+	 */
+	private class ReferenceRegions {
+		
+		private int[] starts; // Region start positions in increasing order
+		private int[] ends; // Region end positions
+		private int[] indices; // Index of each region in the regions list
+		private int nextRegion; // Position in the sorted arrays of the next region to add to the active regions
+		private int[] active; // Min-heap of positions in the sorted arrays of regions that may overlap the current read, ordered by end
+		private int numActive; // Number of active regions
+		private int lastReadStart; // Start of the last read counted in this sweep
+		
+		/**
+		 * @param regionIndices Indices of the regions on this reference in the regions list
+		 */
+		public ReferenceRegions(List<Integer> regionIndices) {
+			int n = regionIndices.size();
+			long[] sortKeys = new long[n];
+			for(int i = 0; i < n; i++) {
+				int index = regionIndices.get(i).intValue();
+				sortKeys[i] = ((long) regions.get(index).getReferenceStartPosition() << 32) | index;
+			}
+			Arrays.sort(sortKeys);
+			starts = new int[n];
+			ends = new int[n];
+			indices = new int[n];
+			for(int i = 0; i < n; i++) {
+				indices[i] = (int) sortKeys[i];
+				Annotation region = regions.get(indices[i]);
+				starts[i] = region.getReferenceStartPosition();
+				ends[i] = region.getReferenceEndPosition();
+			}
+			active = new int[16];
+			startSweep();
+		}
+		
+		/**
+		 * Start a new sweep from the beginning of the reference
+		 */
+		public void startSweep() {
+			nextRegion = 0;
+			numActive = 0;
+			lastReadStart = Integer.MIN_VALUE;
+		}
+		
+		/**
+		 * Count a read for every region it overlaps
+		 * @param read The read, which must not start before the previous read in the sweep
+		 * @return Whether the read overlaps any region
+		 */
+		public boolean count(SAMFragment read) {
+			int readStart = read.getReferenceStartPosition();
+			int readEnd = read.getReferenceEndPosition();
+			if(readStart < lastReadStart) {
+				throw new IllegalArgumentException("Reads must be sorted by coordinate: " + read.getName());
+			}
+			lastReadStart = readStart;
+			// Add regions that start before the read end
+			while(nextRegion < starts.length && starts[nextRegion] < readEnd) {
+				push(nextRegion++);
+			}
+			// Drop regions that end at or before the read start; later reads start at or after this read
+			while(numActive > 0 && ends[active[0]] <= readStart) {
+				pop();
+			}
+			boolean rtrn = false;
+			for(int i = 0; i < numActive; i++) {
+				int r = active[i];
+				if(starts[r] >= readEnd) continue;
+				Annotation region = regions.get(indices[r]);
+				if(region.overlaps(read)) {
+					counts[indices[r]]++;
+					rtrn = true;
+				}
+			}
+			return rtrn;
+		}
+		
+		/**
+		 * Add a region to the active regions
+		 * @param r Position of the region in the sorted arrays
+		 */
+		private void push(int r) {
+			if(numActive == active.length) {
+				active = Arrays.copyOf(active, 2 * numActive);
+			}
+			int i = numActive++;
+			while(i > 0) {
+				int parent = (i - 1) >>> 1;
+				if(ends[active[parent]] <= ends[r]) break;
+				active[i] = active[parent];
+				i = parent;
+			}
+			active[i] = r;
+		}
+		
+		/**
+		 * Remove the active region with the smallest end
+		 */
+		private void pop() {
+			int last = active[--numActive];
+			int i = 0;
+			while(true) {
+				int child = 2 * i + 1;
+				if(child >= numActive) break;
+				if(child + 1 < numActive && ends[active[child + 1]] < ends[active[child]]) child++;
+				if(ends[active[child]] >= ends[last]) break;
+				active[i] = active[child];
+				i = child;
+			}
+			active[i] = last;
+		}
+		
+	}
+	
+	/**
+	 * Make one pass through the bam file and count the reads overlapping each region
+	 * Counts are added to any counts from previous calls
+	 * @param data Reads, which must be sorted by coordinate
+	 */
+	public void countReads(BAMSingleReadCollection data) {
+		CloseableIterator<SAMFragment> iter = data.sortedIterator();
+		countReads(iter);
+		iter.close();
+	}
+	
+	/**
+	 * Count the reads overlapping each region
+	 * Counts are added to any counts from previous calls
+	 * @param reads Iterator over reads sorted by coordinate
+	 */
+	public void countReads(CloseableIterator<SAMFragment> reads) {
+		String currentReference = null;
+		ReferenceRegions currentRegions = null;
+		while(reads.hasNext()) {
+			SAMFragment read = reads.next();
+			numReads++;
+			if(numReads % 10000000 == 0) {
+				logger.info("Finished " + numReads + " reads");
+			}
+			String ref = read.getReferenceName();
+			if(!ref.equals(currentReference)) {
+				currentReference = ref;
+				currentRegions = regionsByReference.get(ref);
+				if(currentRegions != null) currentRegions.startSweep();
+			}
+			if(currentRegions == null) continue;
+			if(currentRegions.count(read)) {
+				numReadsOverlappingRegions++;
+			}
+		}
+	}
+	
+	/**
+	 * @param regionIndex Index of region in the order regions were added
+	 * @return Number of reads overlapping the region
+	 */
+	public int getCount(int regionIndex) {
+		return counts[regionIndex];
+	}
+	
+	/**
+	 * @return Total number of reads counted, including reads that do not overlap any region
+	 */
+	public long getNumReads() {
+		return numReads;
+	}
+	
+	/**
+	 * @return Number of reads that overlap at least one region
+	 */
+	public long getNumReadsOverlappingRegions() {
+		return numReadsOverlappingRegions;
+	}
+	
+}
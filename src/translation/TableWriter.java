@@ -0,0 +1,152 @@
+package translation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Buffered writer for tab delimited output tables, optionally gzipped
+ * Each line is built in a reused buffer by adding fields, so writing a line does not build intermediate strings
+ * Each field is followed by a tab, as in the existing output tables
+ * Numbers are formatted the same way as string concatenation, which does not depend on the locale
+ * @author prussell
+ *
+ */
+public class TableWriter {
+	
+	private String file; // Output file
+	private Writer writer; // Buffered output
+	private StringBuilder line; // Current line
+	private char[] chars; // Reused buffer for copying the line to the writer
+	private static Logger logger = Logger.getLogger(TableWriter.class.getName());
+	
+	/**
+	 * Gzip the output if the file name ends in .gz
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public TableWriter(String file) throws IOException {
+		this(file, file.endsWith(".gz"));
+	}
+	
+	/**
+	 * @param file Output file
+	 * @param gzip Whether to gzip the output
+	 * @throws IOException
+	 */
+	public TableWriter(String file, boolean gzip) throws IOException {
+		this.file = file;
+		FileOutputStream out = new FileOutputStream(file);
+		Charset charset = Charset.forName("UTF-8");
+		if(gzip) {
+			writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(out, 1 << 16), charset), 1 << 16);
+		} else {
+			writer = new BufferedWriter(new OutputStreamWriter(out, charset), 1 << 16);
+		}
+		line = new StringBuilder(256);
+		chars = new char[256];
+	}
+	
+	/**
+	 * Add a field to the current line
+	 * @param field Field
+	 * @return This writer
+	 */
+	public TableWriter add(String field) {
+		line.append(field).append('\t');
+		return this;
+	}
+	
+	/**
+	 * Add a field to the current line
+	 * @param field Field
+	 * @return This writer
+	 */
+	public TableWriter add(int field) {
+		line.append(field).append('\t');
+		return this;
+	}
+	
+	/**
+	 * Add a field to the current line
+	 * @param field Field
+	 * @return This writer
+	 */
+	public TableWriter add(long field) {
+		line.append(field).append('\t');
+		return this;
+	}
+	
+	/**
+	 * Add a field to the current line
+	 * @param field Field
+	 * @return This writer
+	 */
+	public TableWriter add(double field) {
+		line.append(field).append('\t');
+		return this;
+	}
+	
+	/**
+	 * Write the current line and start a new one
+	 * @throws IOException
+	 */
+	public void endLine() throws IOException {
+		line.append('\n');
+		int length = line.length();
+		if(chars.length < length) {
+			chars = new char[Math.max(length, 2 * chars.length)];
+		}
+		line.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+		line.setLength(0);
+	}
+	
+	/**
+	 * Write a complete line as is, without a trailing tab
+	 * @param text Line without the newline
+	 * @throws IOException
+	 */
+	public void writeLine(String text) throws IOException {
+		if(line.length() > 0) {
+			throw new IllegalStateException("Can't write a whole line while a line is in progress");
+		}
+		writer.write(text);
+		writer.write('\n');
+	}
+	
+	/**
+	 * Finish writing and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(line.length() > 0) {
+			throw new IllegalStateException("Line in progress was not ended");
+		}
+		writer.close();
+	}
+	
+	/**
+	 * Close the file after a failure and delete it, since it is incomplete
+	 */
+	public void abort() {
+		try {
+			writer.close();
+		} catch(IOException e) {
+			logger.warn("Could not close " + file + ": " + e.getMessage());
+		}
+		if(new File(file).delete()) {
+			logger.warn("Deleted incomplete output file " + file + ".");
+		} else {
+			logger.warn("Could not delete incomplete output file " + file + ".");
+		}
+	}
+	
+}
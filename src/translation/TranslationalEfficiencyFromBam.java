@@ -1,10 +1,21 @@
 package translation;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 
@@ -13,7 +24,6 @@ import score.GenericRegionScore;
 import score.RegionScore;
 import score.SignificanceType;
 import util.programs.counts.BamCountRegionOverlappers;
-import broad.core.math.ScanStatistics;
 import net.sf.samtools.util.CloseableIterator;
 import guttmanlab.core.annotation.Annotation;
 import guttmanlab.core.annotation.Gene;
@@ -36,21 +46,38 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 	private BAMSingleReadCollection ribosomeData;
 	private BAMSingleReadCollection controlData;
 	private String chrSizeFile;
+	private String geneAnnotationBed; // Bed file of genome annotation used for exon totals
 	private String controlBamFile;
 	private String ribosomeBamFile;
 	private long totalChrSize;
 	private static final double EXPRESSION_SCAN_PVAL_CUTOFF = 0.01;
 	public static int TE_MIN_RAW_READS = 10; // Minimum number of reads in ribosome and control fraction to compute the TE of a CDS
-	private Map<String, Double> expressionScanPvals;
-	private Map<String, Double> ribosomeCdsScanPvals;
-	private Map<String, Double> ribosomeCounts;
-	private Map<String, Double> controlCounts;
+	private RegionDoubleMap expressionScanPvals; // Expression scan P value by gene
+	private RegionDoubleMap ribosomeCdsScanPvals; // Ribosome scan P value by CDS
+	private RegionDoubleMap ribosomeCounts; // Ribosome read count by region
+	private RegionDoubleMap controlCounts; // Control read count by region
+	private ThreadLocal<RegionKey> probeKey = new ThreadLocal<RegionKey>() { // Reused key for cache lookups on each thread
+		@Override
+		protected RegionKey initialValue() {
+			return new RegionKey();
+		}
+	};
+	private ForkJoinPool scorePool; // Pool for scoring genes in parallel while writing output, or null if scoring on one thread
+	private static final int SCORE_BATCH_SIZE = 10000; // Number of genes to score at a time before writing them in order
+	private static final int SCORE_TASK_SIZE = 64; // Maximum number of genes to score in one fork join task
+	private ScanPvalueTable controlScanPvals; // Memoized scan P values for the control sample
+	private ScanPvalueTable ribosomeScanPvals; // Memoized scan P values for the ribosome sample
+	private FootprintCoverage ribosomeCoverage; // Ribosome read 5' end or P-site positions, or null to count ribosome reads by overlap with the bam file
+	private CountStore ribosomeCountStore; // Saved ribosome counts from previous runs, or null if not saving counts
+	private CountStore controlCountStore; // Saved control counts from previous runs, or null if not saving counts
 	private boolean strandSpecific;
 	private double controlGlobalGenomeLambda;
 	private double ribosomeGlobalGenomeLambda;
 	private String ribosomeName;
 	private String controlName;
 	private String experimentID;
+	private boolean batchCounting = false; // Count reads over all genes and CDSs with one pass through each bam file before writing scores
+	private int numThreads = 1; // Number of threads for counting reads and scoring genes; if more than 1, reads are counted by reference sequence with both bam files at once
 	
 	public static Logger logger = Logger.getLogger(TranslationalEfficiencyFromBam.class.getName());
 	
@@ -87,6 +114,43 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 	 * @throws IOException
 	 */
 	public TranslationalEfficiencyFromBam(String ribosomeBam, String controlBam, String geneBed, String chrSizes, double ribosomeGenomeTotal, double controlGenomeTotal, double ribosomeExonTotal, double controlExonTotal, boolean isStrandSpecific, String experimentId) throws IOException {
+		this(ribosomeBam, controlBam, geneBed, chrSizes, ribosomeGenomeTotal, controlGenomeTotal, ribosomeExonTotal, controlExonTotal, isStrandSpecific, experimentId, 1);
+	}
+	
+	/**
+	 * @param ribosomeBam Bam file of ribosome profiling sample
+	 * @param controlBam Bam file of control sample
+	 * @param geneBed Bed file of genome annotation
+	 * @param chrSizes Chromsome size file
+	 * @param ribosomeGenomeTotal Optional total number of ribosome reads mapped to genome (instead of computing from data)
+	 * @param controlGenomeTotal Optional total number of control reads mapped to genome (instead of computing from data)
+	 * @param ribosomeExonTotal Optional total number of ribosome reads mapped to exons (instead of computing from data)
+	 * @param controlExonTotal Optional total number of control reads mapped to exons (instead of computing from data)
+	 * @param isStrandSpecific Whether the libraries are strand specific
+	 * @param experimentId Experiment ID
+	 * @param numThreads Number of threads for counting reads; if more than 1, totals for both samples are computed at once and regions are counted by reference sequence with both bam files at once
+	 * @throws IOException
+	 */
+	public TranslationalEfficiencyFromBam(String ribosomeBam, String controlBam, String geneBed, String chrSizes, double ribosomeGenomeTotal, double controlGenomeTotal, double ribosomeExonTotal, double controlExonTotal, boolean isStrandSpecific, String experimentId, int numThreads) throws IOException {
+		this(ribosomeBam, controlBam, geneBed, chrSizes, ribosomeGenomeTotal, controlGenomeTotal, ribosomeExonTotal, controlExonTotal, isStrandSpecific, experimentId, numThreads, RibosomeCounting.OVERLAP);
+	}
+	
+	/**
+	 * @param ribosomeBam Bam file of ribosome profiling sample
+	 * @param controlBam Bam file of control sample
+	 * @param geneBed Bed file of genome annotation
+	 * @param chrSizes Chromsome size file
+	 * @param ribosomeGenomeTotal Optional total number of ribosome reads mapped to genome (instead of computing from data)
+	 * @param controlGenomeTotal Optional total number of control reads mapped to genome (instead of computing from data)
+	 * @param ribosomeExonTotal Optional total number of ribosome reads mapped to exons (instead of computing from data)
+	 * @param controlExonTotal Optional total number of control reads mapped to exons (instead of computing from data)
+	 * @param isStrandSpecific Whether the libraries are strand specific
+	 * @param experimentId Experiment ID
+	 * @param numThreads Number of threads for counting reads; if more than 1, totals for both samples are computed at once and regions are counted by reference sequence with both bam files at once
+	 * @param ribosomeCounting How to count ribosome reads; if from coverage, the ribosome genome and exon totals are counted from the coverage too
+	 * @throws IOException
+	 */
+	public TranslationalEfficiencyFromBam(String ribosomeBam, String controlBam, String geneBed, String chrSizes, double ribosomeGenomeTotal, double controlGenomeTotal, double ribosomeExonTotal, double controlExonTotal, boolean isStrandSpecific, String experimentId, int numThreads, RibosomeCounting ribosomeCounting) throws IOException {
 		logger.info("");
 		
 		logger.info("Creating translational efficiency object...");
@@ -117,33 +181,69 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		// Set whether the libraries are strand specific (affects counts over annotations)
 		strandSpecific = isStrandSpecific;
 		
+		if(numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		}
+		this.numThreads = numThreads;
+		
 		// Initialize caches of expression P values and region counts
-		expressionScanPvals = new HashMap<String, Double>();
-		ribosomeCdsScanPvals = new HashMap<String, Double>();
-		ribosomeCounts = new HashMap<String, Double>();
-		controlCounts = new HashMap<String, Double>();
+		expressionScanPvals = new RegionDoubleMap();
+		ribosomeCdsScanPvals = new RegionDoubleMap();
+		ribosomeCounts = new RegionDoubleMap();
+		controlCounts = new RegionDoubleMap();
 		
 		// Save chromosome size file to use when loading annotations
 		chrSizeFile = chrSizes;
+		geneAnnotationBed = geneBed;
 		
 		// Load read mapping data
 		controlBamFile = controlBam;
 		ribosomeBamFile = ribosomeBam;
 		ribosomeData = new BAMSingleReadCollection(new File(ribosomeBamFile));
 		controlData = new BAMSingleReadCollection(new File(controlBamFile));
-
-		// Compute global read counts
-		controlGlobalGenomeTotal = controlGenomeTotal;
-		if(controlGlobalGenomeTotal <= 0) {
-			logger.info("Computing total genome read count for control sample " + controlName + "...");
-			controlGlobalGenomeTotal = controlData.getNumAnnotations();
+		
+		// Load the ribosome coverage first so the ribosome totals can be counted the same way as the regions
+		if(ribosomeCounting.usesCoverage()) {
+			logger.info("Loading " + ribosomeCounting + " coverage for ribosome sample " + ribosomeName + "...");
+			ribosomeCoverage = ribosomeCounting.loadCoverage(ribosomeData, chrSizeFile);
+			if(ribosomeGenomeTotal <= 0) {
+				ribosomeGenomeTotal = ribosomeCoverage.getNumCountedReads();
+			}
+			if(ribosomeExonTotal < 0) {
+				ribosomeExonTotal = coverageExonTotal(geneBed);
+			}
 		}
+		
+		// Use totals saved by previous runs on the same bam files and annotation
+		ReadTotalsFile ribosomeTotalsFile = new ReadTotalsFile(ribosomeBamFile);
+		ReadTotalsFile controlTotalsFile = new ReadTotalsFile(controlBamFile);
+		if(ribosomeGenomeTotal <= 0) ribosomeGenomeTotal = ribosomeTotalsFile.getGenomeTotal();
+		if(controlGenomeTotal <= 0) controlGenomeTotal = controlTotalsFile.getGenomeTotal();
+		if(ribosomeExonTotal < 0) ribosomeExonTotal = ribosomeTotalsFile.getExonTotal(geneBed, strandSpecific);
+		if(controlExonTotal < 0) controlExonTotal = controlTotalsFile.getExonTotal(geneBed, strandSpecific);
+		// Totals counted from ribosome coverage are set above, so are never saved
+		boolean saveRibosomeGenomeTotal = ribosomeGenomeTotal <= 0;
+		boolean saveControlGenomeTotal = controlGenomeTotal <= 0;
+		boolean saveRibosomeExonTotal = ribosomeExonTotal < 0;
+		boolean saveControlExonTotal = controlExonTotal < 0;
+		
+		// Compute any missing totals, all at once if using multiple threads
+		// The totals are counted the same way whatever the number of threads
+		List<Callable<Double>> totalTasks = new ArrayList<Callable<Double>>();
+		totalTasks.add(controlGenomeTotal <= 0 ? genomeTotalTask(controlData, "control", controlName) : null);
+		totalTasks.add(ribosomeGenomeTotal <= 0 ? genomeTotalTask(ribosomeData, "ribosome", ribosomeName) : null);
+		totalTasks.add(controlExonTotal < 0 ? exonTotalTask(geneBed, true) : null);
+		totalTasks.add(ribosomeExonTotal < 0 ? exonTotalTask(geneBed, false) : null);
+		double[] computedTotals = computeTotals(totalTasks);
+		if(controlGenomeTotal <= 0) controlGenomeTotal = computedTotals[0];
+		if(ribosomeGenomeTotal <= 0) ribosomeGenomeTotal = computedTotals[1];
+		if(controlExonTotal < 0) controlExonTotal = computedTotals[2];
+		if(ribosomeExonTotal < 0) ribosomeExonTotal = computedTotals[3];
+		
+		// Global read counts
+		controlGlobalGenomeTotal = controlGenomeTotal;
 		logger.info(controlGlobalGenomeTotal + " total reads in control fraction.");
 		ribosomeGlobalGenomeTotal = ribosomeGenomeTotal;
-		if(ribosomeGlobalGenomeTotal <= 0) {
-			logger.info("Computing total genome read count for ribosome sample " + ribosomeName + "...");
-			ribosomeGlobalGenomeTotal = ribosomeData.getNumAnnotations();
-		}
 		logger.info(ribosomeGlobalGenomeTotal + " total reads in ribosome fraction.");
 
 		// Compute scan distribution parameters
@@ -152,23 +252,24 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		controlGlobalGenomeLambda = controlGlobalGenomeTotal / totalChrSize;
 		logger.info("Total chromosome size is " + totalChrSize + ". Global mapped reads in control fraction is " + controlGlobalGenomeTotal + ". Control global lambda is " + controlGlobalGenomeLambda + ".");
 		ribosomeGlobalGenomeLambda = ribosomeGlobalGenomeTotal / totalChrSize;
+		setScanPvalInterpolation(0, 0);
 		
 		// Calculate TE normalization factor
-		if(controlExonTotal < 0) {
-			logger.info("Computing total exon read count for control sample " + controlName + "...");
-			controlExonTotal = exonTotal(geneBed, true);
-		}
 		controlGlobalExonTotal = controlExonTotal;
 		logger.info(controlGlobalExonTotal + " total exon reads in control fraction.");
-		if(ribosomeExonTotal < 0) {
-			logger.info("Computing total exon read count for ribosome sample " + ribosomeName + "...");
-			ribosomeExonTotal = exonTotal(geneBed, false);
-		}
 		ribosomeGlobalExonTotal = ribosomeExonTotal;
 		logger.info(ribosomeGlobalExonTotal + " total exon reads in ribosome fraction.");
 		normalizationFactor = ribosomeGlobalExonTotal / controlGlobalExonTotal;
 		logger.info("Normalization factor is " + normalizationFactor + ".");
 		
+		// Save computed totals for later runs
+		if(saveRibosomeGenomeTotal) ribosomeTotalsFile.setGenomeTotal(ribosomeGlobalGenomeTotal);
+		if(saveControlGenomeTotal) controlTotalsFile.setGenomeTotal(controlGlobalGenomeTotal);
+		if(saveRibosomeExonTotal) ribosomeTotalsFile.setExonTotal(geneBed, strandSpecific, ribosomeGlobalExonTotal);
+		if(saveControlExonTotal) controlTotalsFile.setExonTotal(geneBed, strandSpecific, controlGlobalExonTotal);
+		ribosomeTotalsFile.save();
+		controlTotalsFile.save();
+		
 		logger.info("");
 		logger.info("Done creating translational efficiency object for " + ribosomeName + " and " + controlName + ".");
 		
@@ -205,6 +306,174 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		return new TranslationalEfficiencyFromBam(ribosomeBam, controlBam, geneBed, chrSizes, ribosomeGenomeTotal, controlGenomeTotal, ribosomeExonTotal, controlExonTotal, isStrandSpecific, experimentId);
 	}
 	
+	/**
+	 * @param data Reads for a sample
+	 * @param sampleType Sample type for logging
+	 * @param sampleName Sample name for logging
+	 * @return Task that computes the total number of reads mapped to the genome
+	 */
+	private static Callable<Double> genomeTotalTask(final BAMSingleReadCollection data, final String sampleType, final String sampleName) {
+		return new Callable<Double>() {
+			@Override
+			public Double call() {
+				logger.info("Computing total genome read count for " + sampleType + " sample " + sampleName + "...");
+				return Double.valueOf(data.getNumAnnotations());
+			}
+		};
+	}
+	
+	/**
+	 * @param geneBed Bed file of genes
+	 * @param control If true, use control sample; if false, use ribosome sample
+	 * @return Task that computes the total number of reads mapping to exons in the annotation
+	 */
+	private Callable<Double> exonTotalTask(final String geneBed, final boolean control) {
+		return new Callable<Double>() {
+			@Override
+			public Double call() throws IOException {
+				logger.info("Computing total exon read count for " + (control ? "control sample " + controlName : "ribosome sample " + ribosomeName) + "...");
+				return Double.valueOf(exonTotal(geneBed, control));
+			}
+		};
+	}
+	
+	/**
+	 * Run the tasks that compute read totals, at the same time if using multiple threads
+	 * Each task reads a different bam file or uses its own bam reader, so the tasks can run at once
+	 * @param tasks Tasks, or null for totals that don't need to be computed
+	 * @return The total computed by each task, in the same order as the tasks, or NaN for null tasks
+	 * @throws IOException
+	 */
+	private double[] computeTotals(List<Callable<Double>> tasks) throws IOException {
+		double[] rtrn = new double[tasks.size()];
+		Arrays.fill(rtrn, Double.NaN);
+		List<Future<Double>> futures = new ArrayList<Future<Double>>();
+		ExecutorService workers = numThreads > 1 ? Executors.newFixedThreadPool(Math.min(numThreads, tasks.size())) : null;
+		try {
+			for(Callable<Double> task : tasks) {
+				if(task == null) {
+					futures.add(null);
+				} else if(workers == null) {
+					// Run on this thread
+					FutureTask<Double> future = new FutureTask<Double>(task);
+					future.run();
+					futures.add(future);
+				} else {
+					futures.add(workers.submit(task));
+				}
+			}
+			for(int i = 0; i < futures.size(); i++) {
+				if(futures.get(i) != null) {
+					rtrn[i] = futures.get(i).get().doubleValue();
+				}
+			}
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing read totals", e);
+		} finally {
+			if(workers != null) workers.shutdownNow();
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @param batch Whether to count reads over all genes and CDSs with one pass through each bam file before writing scores,
+	 * instead of querying the bam files separately for each region
+	 */
+	public void setBatchCounting(boolean batch) {
+		batchCounting = batch;
+	}
+	
+	/**
+	 * Save region counts in files in a directory so later runs on the same bam files can reuse them, and load any counts already saved
+	 * Saved counts are discarded if the bam file has changed
+	 * Call closeCountCache() when done
+	 * @param directory Directory for count files
+	 * @throws IOException
+	 */
+	public void setCountCache(String directory) throws IOException {
+		closeCountCache();
+		ribosomeCountStore = CountStore.open(directory, ribosomeBamFile, strandSpecific);
+		ribosomeCountStore.load(ribosomeCounts);
+		controlCountStore = CountStore.open(directory, controlBamFile, strandSpecific);
+		controlCountStore.load(controlCounts);
+	}
+	
+	/**
+	 * Count the ribosome exon total from the ribosome coverage, so the TE normalization counts reads the same way as the regions
+	 * @param geneBed Bed file of genome annotation
+	 * @return Number of ribosome reads with counted position in the exons
+	 * @throws IOException
+	 */
+	private double coverageExonTotal(String geneBed) throws IOException {
+		List<Gene> exonRegions = new ArrayList<Gene>();
+		CloseableIterator<Gene> iter = BEDFileIO.loadFromFile(geneBed, chrSizeFile).sortedIterator();
+		while(iter.hasNext()) {
+			exonRegions.add(iter.next());
+		}
+		iter.close();
+		return ribosomeCoverage.countInUnion(exonRegions, strandSpecific);
+	}
+	
+	/**
+	 * Add a count to the cache for a sample and save it if saving counts
+	 * If another thread already added the region, its count is kept and nothing is saved, so each count is saved once
+	 * @param counts Cache of counts for the sample
+	 * @param store Saved counts for the sample, or null if not saving counts
+	 * @param key Region key, which must not be modified afterwards
+	 * @param count Count
+	 */
+	private static void putCount(RegionDoubleMap counts, CountStore store, RegionKey key, double count) {
+		if(!counts.putIfAbsent(key, count)) {
+			return;
+		}
+		if(store != null) {
+			try {
+				store.add(key, count);
+			} catch(IOException e) {
+				throw new IllegalStateException("Could not save count: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Write any counts not yet saved to the count files
+	 * @throws IOException
+	 */
+	public void flushCountCache() throws IOException {
+		if(ribosomeCountStore != null) ribosomeCountStore.flush();
+		if(controlCountStore != null) controlCountStore.flush();
+	}
+	
+	/**
+	 * Write any counts not yet saved and stop saving counts
+	 * @throws IOException
+	 */
+	public void closeCountCache() throws IOException {
+		if(ribosomeCountStore != null) ribosomeCountStore.close();
+		if(controlCountStore != null) controlCountStore.close();
+		ribosomeCountStore = null;
+		controlCountStore = null;
+	}
+	
+	/**
+	 * Set whether to interpolate scan P values for large regions between region sizes on a geometric grid instead of computing them exactly
+	 * Clears the caches of P values
+	 * @param minSize Interpolate P values for regions at least this size, or 0 to compute exact P values for all regions
+	 * @param gridPointsPerDoubling Number of grid region sizes for each doubling of the region size, if interpolating
+	 */
+	public void setScanPvalInterpolation(int minSize, int gridPointsPerDoubling) {
+		controlScanPvals = new ScanPvalueTable(controlGlobalGenomeLambda, totalChrSize, minSize, gridPointsPerDoubling);
+		ribosomeScanPvals = new ScanPvalueTable(ribosomeGlobalGenomeLambda, totalChrSize, minSize, gridPointsPerDoubling);
+		expressionScanPvals = new RegionDoubleMap();
+		ribosomeCdsScanPvals = new RegionDoubleMap();
+	}
+	
 	/**
 	 * @param gene Gene
 	 * @return Whether the gene contains a significant number of control reads compared to genomic background
@@ -254,94 +523,249 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		return getTE(cds, gene);
 	}
 	
+	/**
+	 * Scores and counts for the CDS of one gene, as written to the output files
+	 * @author prussell
+	 *
+	 */
+	private class CdsTERow {
+		
+		private Gene gene;
+		private double expPval;
+		private double rCountCDS;
+		private double mCountCDS;
+		private double mCountGene;
+		private double rCountGene;
+		private double te;
+		private int geneSize;
+		private double geneLambda;
+		
+		/**
+		 * @param gene Gene to score
+		 */
+		public CdsTERow(Gene gene) {
+			this.gene = gene;
+			Annotation cds = gene.getCodingRegion();
+			expPval = getExpressionScanPval(gene);
+			rCountCDS = getRibosomeCount(cds);
+			mCountCDS = getControlCount(cds);
+			mCountGene = getControlCount(gene);
+			rCountGene = getRibosomeCount(gene);
+			te = getCdsTE(gene);
+			geneSize = gene.size();
+			geneLambda = mCountGene / geneSize;
+		}
+		
+	}
+	
+	/**
+	 * Scores the genes in a range of a list, splitting the range into subtasks on a fork join pool
+	 * @author prussell
+	 *
+	 */
+	private class CdsTERowTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		private List<Gene> genes; // Genes to score
+		private CdsTERow[] rows; // Array to put the row for each gene in, at the same index as the gene
+		private int start; // First index to score
+		private int end; // Index after the last to score
+		
+		/**
+		 * @param genes Genes to score
+		 * @param rows Array to put the row for each gene in, at the same index as the gene
+		 * @param start First index to score
+		 * @param end Index after the last to score
+		 */
+		public CdsTERowTask(List<Gene> genes, CdsTERow[] rows, int start, int end) {
+			this.genes = genes;
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if(end - start <= SCORE_TASK_SIZE) {
+				for(int i = start; i < end; i++) {
+					rows[i] = new CdsTERow(genes.get(i));
+				}
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(new CdsTERowTask(genes, rows, start, mid), new CdsTERowTask(genes, rows, mid, end));
+		}
+		
+	}
+	
+	/**
+	 * Score a batch of genes, with multiple threads if using more than one thread
+	 * @param genes Genes
+	 * @return Row for each gene, in the same order as the genes
+	 */
+	private CdsTERow[] scoreCdsTEs(List<Gene> genes) {
+		CdsTERow[] rtrn = new CdsTERow[genes.size()];
+		if(scorePool == null) {
+			for(int i = 0; i < rtrn.length; i++) {
+				rtrn[i] = new CdsTERow(genes.get(i));
+			}
+		} else {
+			scorePool.invoke(new CdsTERowTask(genes, rtrn, 0, rtrn.length));
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Prepare to score genes: count reads over all genes and CDSs first if batch counting,
+	 * and start the fork join pool if using multiple threads
+	 * @param genes Genes
+	 * @throws IOException
+	 */
+	private void startScoring(AnnotationCollection<Gene> genes) throws IOException {
+		if(batchCounting || numThreads > 1) {
+			cacheGeneAndCdsCounts(genes);
+		}
+		if(numThreads > 1) {
+			scorePool = new ForkJoinPool(numThreads);
+		}
+	}
+	
+	/**
+	 * Shut down the fork join pool if there is one and save any new counts
+	 * @throws IOException
+	 */
+	private void finishScoring() throws IOException {
+		if(scorePool != null) {
+			scorePool.shutdown();
+			scorePool = null;
+		}
+		flushCountCache();
+	}
+	
+	/**
+	 * Get the next batch of genes to score
+	 * @param iter Gene iterator
+	 * @return Up to SCORE_BATCH_SIZE genes from the iterator, in iterator order
+	 */
+	private static List<Gene> nextBatch(CloseableIterator<Gene> iter) {
+		List<Gene> rtrn = new ArrayList<Gene>();
+		while(iter.hasNext() && rtrn.size() < SCORE_BATCH_SIZE) {
+			rtrn.add(iter.next());
+		}
+		return rtrn;
+	}
+	
 	/**
 	 * Write TE scores for the CDS of each gene to a bed file
+	 * If using multiple threads, genes are scored in parallel and written in sorted order
 	 * @param geneBed Bed file of genes to analyze
 	 * @param outputBed Bed file to write
 	 * @throws IOException 
 	 */
 	public void writeCdsTEsToBed(String geneBed, String outputBed) throws IOException {
 		logger.info("");
-		FileWriter w = new FileWriter(outputBed);
-		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(geneBed, chrSizeFile);
-		int numGenes = genes.getNumAnnotations();
-		CountLogger countLogger = new CountLogger(numGenes, 20);
-		logger.info("Writing bed file with CDS TE scores for " + genes.getNumAnnotations() + " genes in " + geneBed + "...");
-		CloseableIterator<Gene> iter = genes.sortedIterator();
-		while(iter.hasNext()) {
-			countLogger.advance();
-			Gene gene = iter.next();
-			double te = getCdsTE(gene);
-			String bedLine = gene.toBED(te);
-			w.write(bedLine + "\n");
+		TableWriter w = new TableWriter(outputBed);
+		boolean done = false;
+		try {
+			AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(geneBed, chrSizeFile);
+			try {
+				startScoring(genes);
+				int numGenes = genes.getNumAnnotations();
+				CountLogger countLogger = new CountLogger(numGenes, 20);
+				logger.info("Writing bed file with CDS TE scores for " + genes.getNumAnnotations() + " genes in " + geneBed + "...");
+				CloseableIterator<Gene> iter = genes.sortedIterator();
+				try {
+					while(iter.hasNext()) {
+						for(CdsTERow row : scoreCdsTEs(nextBatch(iter))) {
+							countLogger.advance();
+							w.writeLine(row.gene.toBED(row.te));
+						}
+					}
+				} finally {
+					iter.close();
+				}
+			} finally {
+				finishScoring();
+			}
+			w.close();
+			done = true;
+		} finally {
+			// Don't leave a truncated file that looks complete
+			if(!done) w.abort();
 		}
-		w.close();
-		iter.close();
 		logger.info("Done writing to " + outputBed + ".");
 	}
 	
 	
 	/**
 	 * Write TE scores for the CDS of each gene to a table
+	 * If using multiple threads, genes are scored in parallel and written in sorted order
 	 * @param geneBed Bed file of genes to analyze
 	 * @param outputTable Table file to write
 	 * @throws IOException 
 	 */
 	public void writeCdsTEsToTable(String geneBed, String outputTable) throws IOException {
 		logger.info("");
-		FileWriter w = new FileWriter(outputTable);
-		AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(geneBed, chrSizeFile);
-		int numGenes = genes.getNumAnnotations();
-		CountLogger countLogger = new CountLogger(numGenes, 20);
-		logger.info("Writing table with CDS TE scores for " + numGenes + " genes in " + geneBed + "...");
-		CloseableIterator<Gene> iter = genes.sortedIterator();
-		String header = "gene\t";
-		header += "global_genome_count_control\t";
-		header += "global_genome_count_ribosome\t";
-		header += "global_exon_count_control\t";
-		header += "global_exon_count_ribosome\t";
-		header += "global_lambda\t";
-		header += "gene_size\t";
-		header += "gene_lambda\t";
-		header += "expression_scan_pval\t";
-		header += "gene_count_control\t";
-		header += "gene_count_ribosome\t";
-		header += "cds_count_control\t";
-		header += "cds_count_ribosome\t";
-		header += "TE_normalization_factor\t";
-		header += "TE_score_CDS\t";
-		w.write(header + "\n");
-		while(iter.hasNext()) {
-			Gene gene = iter.next();
-			countLogger.advance();
-			Annotation cds = gene.getCodingRegion();
-			double expPval = getExpressionScanPval(gene);
-			double rCountCDS = getRibosomeCount(cds);
-			double mCountCDS = getControlCount(cds);
-			double mCountGene = getControlCount(gene);
-			double rCountGene = getRibosomeCount(gene);
-			double te = getCdsTE(gene);
-			int geneSize = gene.size();
-			double geneLambda = mCountGene / geneSize;
-			String line = gene.getName() + "\t";
-			line += controlGlobalGenomeTotal + "\t";
-			line += ribosomeGlobalGenomeTotal + "\t";
-			line += controlGlobalExonTotal + "\t";
-			line += ribosomeGlobalExonTotal + "\t";
-			line += controlGlobalGenomeLambda + "\t";
-			line += geneSize + "\t";
-			line += geneLambda + "\t";
-			line += expPval + "\t";
-			line += mCountGene + "\t";
-			line += rCountGene + "\t";
-			line += mCountCDS + "\t";
-			line += rCountCDS + "\t";
-			line += normalizationFactor + "\t";
-			line += te + "\t";
-			w.write(line + "\n");
-		}
-		w.close();
-		iter.close();
+		TableWriter w = new TableWriter(outputTable);
+		boolean done = false;
+		try {
+			AnnotationCollection<Gene> genes = BEDFileIO.loadFromFile(geneBed, chrSizeFile);
+			try {
+				startScoring(genes);
+				int numGenes = genes.getNumAnnotations();
+				CountLogger countLogger = new CountLogger(numGenes, 20);
+				logger.info("Writing table with CDS TE scores for " + numGenes + " genes in " + geneBed + "...");
+				w.add("gene");
+				w.add("global_genome_count_control");
+				w.add("global_genome_count_ribosome");
+				w.add("global_exon_count_control");
+				w.add("global_exon_count_ribosome");
+				w.add("global_lambda");
+				w.add("gene_size");
+				w.add("gene_lambda");
+				w.add("expression_scan_pval");
+				w.add("gene_count_control");
+				w.add("gene_count_ribosome");
+				w.add("cds_count_control");
+				w.add("cds_count_ribosome");
+				w.add("TE_normalization_factor");
+				w.add("TE_score_CDS");
+				w.endLine();
+				CloseableIterator<Gene> iter = genes.sortedIterator();
+				try {
+					while(iter.hasNext()) {
+						for(CdsTERow row : scoreCdsTEs(nextBatch(iter))) {
+							countLogger.advance();
+							w.add(row.gene.getName());
+							w.add(controlGlobalGenomeTotal);
+							w.add(ribosomeGlobalGenomeTotal);
+							w.add(controlGlobalExonTotal);
+							w.add(ribosomeGlobalExonTotal);
+							w.add(controlGlobalGenomeLambda);
+							w.add(row.geneSize);
+							w.add(row.geneLambda);
+							w.add(row.expPval);
+							w.add(row.mCountGene);
+							w.add(row.rCountGene);
+							w.add(row.mCountCDS);
+							w.add(row.rCountCDS);
+							w.add(normalizationFactor);
+							w.add(row.te);
+							w.endLine();
+						}
+					}
+				} finally {
+					iter.close();
+				}
+			} finally {
+				finishScoring();
+			}
+			w.close();
+			done = true;
+		} finally {
+			// Don't leave a truncated file that looks complete
+			if(!done) w.abort();
+		}
 		logger.info("Done writing to " + outputTable + ".");
 	}
 	
@@ -363,13 +787,14 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 	 * @return Scan P value for read count over gene in control sample
 	 */
 	public double getExpressionScanPval(Annotation gene) {
-		if(expressionScanPvals.containsKey(gene.toBED())) {
-			return expressionScanPvals.get(gene.toBED()).doubleValue();
+		RegionKey cachedKey = getCountKey(gene);
+		if(expressionScanPvals.containsKey(cachedKey)) {
+			return expressionScanPvals.get(cachedKey);
 		}
 		int controlCount = (int)getControlCount(gene);
 		int geneSize = gene.size();
-		double rtrn = ScanStatistics.calculatePVal(controlCount, controlGlobalGenomeLambda, geneSize, totalChrSize);
-		expressionScanPvals.put(gene.toBED(), Double.valueOf(rtrn));
+		double rtrn = controlScanPvals.getPval(controlCount, geneSize);
+		expressionScanPvals.put(getCountKey(gene).copy(), rtrn);
 		return rtrn;
 	}
 	
@@ -379,32 +804,158 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 	 * @return Scan P value for ribosome footprint count over CDS of gene
 	 */
 	public double getCdsRibosomeScanPval(Gene gene) {
-		if(ribosomeCdsScanPvals.containsKey(gene.toBED())) {
-			return ribosomeCdsScanPvals.get(gene.toBED()).doubleValue();
-		}
 		Annotation cds = gene.getCodingRegion();
+		RegionKey cachedKey = getCountKey(cds);
+		if(ribosomeCdsScanPvals.containsKey(cachedKey)) {
+			return ribosomeCdsScanPvals.get(cachedKey);
+		}
 		int ribosomeCdsCount = (int)getRibosomeCount(cds);
 		int cdsSize = cds.size();
-		double rtrn = ScanStatistics.calculatePVal(ribosomeCdsCount, ribosomeGlobalGenomeLambda, cdsSize, totalChrSize);
-		ribosomeCdsScanPvals.put(gene.toBED(), Double.valueOf(rtrn));
+		double rtrn = ribosomeScanPvals.getPval(ribosomeCdsCount, cdsSize);
+		ribosomeCdsScanPvals.put(getCountKey(cds).copy(), rtrn);
 		return rtrn;
 	}
 	
 	
+	/**
+	 * Count reads over each gene and its CDS in both samples and save the counts in the caches
+	 * @param genes Genes
+	 */
+	private void cacheGeneAndCdsCounts(AnnotationCollection<Gene> genes) throws IOException {
+		List<Annotation> regions = new ArrayList<Annotation>();
+		CloseableIterator<Gene> iter = genes.sortedIterator();
+		while(iter.hasNext()) {
+			Gene gene = iter.next();
+			regions.add(gene);
+			regions.add(gene.getCodingRegion());
+		}
+		iter.close();
+		cacheCounts(regions);
+	}
+	
+	/**
+	 * Count reads over a set of regions in both samples with one pass through each bam file,
+	 * and save the counts in the caches used by getRibosomeCount() and getControlCount()
+	 * Regions that are already cached are not counted again
+	 * If using multiple threads, the bam files are counted at once and split by reference sequence
+	 * @param regions Regions to count
+	 * @throws IOException
+	 */
+	public void cacheCounts(Collection<? extends Annotation> regions) throws IOException {
+		// Ribosome counts come from the footprint coverage if it is loaded
+		boolean countRibosome = ribosomeCoverage == null;
+		if(numThreads > 1) {
+			Map<RegionKey, Gene> regionsToCount = getUncachedRegions(regions, controlCounts);
+			if(countRibosome) {
+				regionsToCount.putAll(getUncachedRegions(regions, ribosomeCounts));
+			}
+			if(regionsToCount.isEmpty()) {
+				return;
+			}
+			List<RegionKey> keys = new ArrayList<RegionKey>(regionsToCount.keySet());
+			List<Gene> regionList = new ArrayList<Gene>(regionsToCount.values());
+			ParallelRegionCounter counter = new ParallelRegionCounter(numThreads);
+			if(countRibosome) {
+				List<ParallelRegionCounter.Counts> counts = counter.countReads(Arrays.asList(ribosomeBamFile, controlBamFile), regionList);
+				for(int i = 0; i < keys.size(); i++) {
+					putCount(ribosomeCounts, ribosomeCountStore, keys.get(i), counts.get(0).getCount(i));
+					putCount(controlCounts, controlCountStore, keys.get(i), counts.get(1).getCount(i));
+				}
+			} else {
+				ParallelRegionCounter.Counts counts = counter.countReads(Arrays.asList(controlBamFile), regionList).get(0);
+				for(int i = 0; i < keys.size(); i++) {
+					putCount(controlCounts, controlCountStore, keys.get(i), counts.getCount(i));
+				}
+			}
+			flushCountCache();
+			return;
+		}
+		if(countRibosome) {
+			cacheCounts(regions, ribosomeData, ribosomeCounts, ribosomeCountStore, ribosomeName);
+		}
+		cacheCounts(regions, controlData, controlCounts, controlCountStore, controlName);
+		flushCountCache();
+	}
+	
+	/**
+	 * @param regions Regions
+	 * @param counts Cache of counts for a sample
+	 * @return The regions to count reads over, as returned by getCountRegion(), that are not in the cache, by cache key
+	 */
+	private Map<RegionKey, Gene> getUncachedRegions(Collection<? extends Annotation> regions, RegionDoubleMap counts) {
+		Map<RegionKey, Gene> rtrn = new LinkedHashMap<RegionKey, Gene>();
+		for(Annotation region : regions) {
+			RegionKey key = getCountKey(region);
+			if(!counts.containsKey(key) && !rtrn.containsKey(key)) {
+				rtrn.put(key.copy(), getCountRegion(region));
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Count reads over a set of regions in one sample with one pass through the bam file
+	 * @param regions Regions to count
+	 * @param data Reads for the sample
+	 * @param counts Cache of counts for the sample, to add the new counts to
+	 * @param store Saved counts for the sample, or null if not saving counts
+	 * @param sampleName Sample name for logging
+	 */
+	private void cacheCounts(Collection<? extends Annotation> regions, BAMSingleReadCollection data, RegionDoubleMap counts, CountStore store, String sampleName) {
+		Map<RegionKey, Gene> regionsToCount = getUncachedRegions(regions, counts);
+		if(regionsToCount.isEmpty()) {
+			return;
+		}
+		logger.info("Counting reads in " + sampleName + " over " + regionsToCount.size() + " regions with one pass through the bam file...");
+		List<RegionKey> keys = new ArrayList<RegionKey>(regionsToCount.keySet());
+		SortedRegionCounter counter = new SortedRegionCounter(regionsToCount.values());
+		counter.countReads(data);
+		for(int i = 0; i < keys.size(); i++) {
+			putCount(counts, store, keys.get(i), counter.getCount(i));
+		}
+		logger.info("Done counting reads in " + sampleName + ".");
+	}
+	
 	/**
 	 * @param gene Gene
-	 * @return Ribosome read count over gene
+	 * @return Copy of the gene to count reads over, with strand removed if the libraries are not strand specific
 	 */
-	public double getRibosomeCount(Annotation gene) {
+	private Gene getCountRegion(Annotation gene) {
 		Gene geneToUse = new Gene(gene);
 		if(!strandSpecific) {
 			geneToUse.setOrientation(Strand.BOTH);
 		}
-		if(ribosomeCounts.containsKey(geneToUse.toBED())) {
-			return ribosomeCounts.get(geneToUse.toBED()).doubleValue();
+		return geneToUse;
+	}
+	
+	/**
+	 * Get the cache key for the region that getCountRegion() would return, without copying the region
+	 * The returned key is reused by the next call, so it must be copied before storing it in a cache
+	 * @param gene Gene
+	 * @return Key for the gene's blocks, with strand removed if the libraries are not strand specific
+	 */
+	private RegionKey getCountKey(Annotation gene) {
+		return probeKey.get().set(gene, strandSpecific ? gene.getOrientation() : Strand.BOTH);
+	}
+	
+	/**
+	 * @param gene Gene
+	 * @return Ribosome read count over gene, by 5' end position if using footprint coverage or by overlap otherwise
+	 */
+	public double getRibosomeCount(Annotation gene) {
+		if(ribosomeCoverage != null) {
+			return ribosomeCoverage.count(gene, strandSpecific);
+		}
+		RegionKey cachedKey = getCountKey(gene);
+		if(ribosomeCounts.containsKey(cachedKey)) {
+			return ribosomeCounts.get(cachedKey);
+		}
+		RegionKey key = getCountKey(gene).copy();
+		int ribosome;
+		synchronized(ribosomeData) {
+			ribosome = ribosomeData.numOverlappers(getCountRegion(gene), false);
 		}
-		int ribosome = ribosomeData.numOverlappers(geneToUse, false);
-		ribosomeCounts.put(geneToUse.toBED(), Double.valueOf(ribosome));
+		putCount(ribosomeCounts, ribosomeCountStore, key, ribosome);
 		return ribosome;
 	}
 	
@@ -413,15 +964,16 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 	 * @return control read count over gene
 	 */
 	public double getControlCount(Annotation gene) {
-		Gene geneToUse = new Gene(gene);
-		if(!strandSpecific) {
-			geneToUse.setOrientation(Strand.BOTH);
+		RegionKey cachedKey = getCountKey(gene);
+		if(controlCounts.containsKey(cachedKey)) {
+			return controlCounts.get(cachedKey);
 		}
-		if(controlCounts.containsKey(geneToUse.toBED())) {
-			return controlCounts.get(geneToUse.toBED()).doubleValue();
+		RegionKey key = getCountKey(gene).copy();
+		int rtrn;
+		synchronized(controlData) {
+			rtrn = controlData.numOverlappers(getCountRegion(gene), false);
 		}
-		int rtrn = controlData.numOverlappers(geneToUse, false);
-		controlCounts.put(geneToUse.toBED(), Double.valueOf(rtrn));
+		putCount(controlCounts, controlCountStore, key, rtrn);
 		return rtrn;
 	}
 	
@@ -441,6 +993,16 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		p.addDoubleArg("-rte", "Ribosome global exon total (instead of computing from data)", false, -1);
 		p.addBooleanArg("-ss", "Libraries are strand specific", false, true);
 		p.addStringArg("-e", "Experiment ID", true);
+		p.addBooleanArg("-bc", "Count reads over all genes and CDSs with one pass through each bam file instead of a bam query per region", false, false);
+		p.addStringArg("-cc", "Directory to save region counts in for reuse by later runs on the same bam files", false, null);
+		p.addBooleanArg("-fc", "Load ribosome read 5' end positions once and count ribosome reads in each region and in the ribosome totals by 5' end instead of by overlap", false, false);
+		p.addStringArg("-po", "Table of read length and P-site offset; count ribosome reads in each region and in the ribosome totals by P-site instead of by overlap", false, null);
+		p.addBooleanArg("-pe", "Estimate P-site offsets from reads near CDS starts in the -gc bed file and count ribosome reads by P-site instead of by overlap", false, false);
+		p.addIntArg("-pmin", "Shortest ribosome read length to estimate a P-site offset for, with -pe", false, 25);
+		p.addIntArg("-pmax", "Longest ribosome read length to estimate a P-site offset for, with -pe", false, 35);
+		p.addIntArg("-pi", "Interpolate scan P values for regions at least this size instead of computing them exactly; P values for these regions are approximate (0 for exact P values)", false, 0);
+		p.addIntArg("-pg", "Number of interpolation grid sizes per doubling of region size, with -pi", false, 8);
+		p.addIntArg("-t", "Number of threads for counting reads and scoring genes; if more than 1, implies -bc and counts both bam files at once split by reference sequence", false, 1);
 		p.parse(args);
 		String ribosomeBam = p.getStringArg("-r");
 		String controlBam = p.getStringArg("-m");
@@ -455,13 +1017,35 @@ public class TranslationalEfficiencyFromBam extends AbstractRegionScore<Gene> {
 		double controlExonTotal = p.getDoubleArg("-mte");
 		boolean strandSpecific = p.getBooleanArg("-ss");
 		String experimentId = p.getStringArg("-e");
+		boolean batchCounting = p.getBooleanArg("-bc");
+		int numThreads = p.getIntArg("-t");
+		String countCacheDir = p.getStringArg("-cc");
+		boolean footprintCoverage = p.getBooleanArg("-fc");
+		String pSiteOffsetTable = p.getStringArg("-po");
+		boolean estimatePSiteOffsets = p.getBooleanArg("-pe");
+		int pSiteMinReadLength = p.getIntArg("-pmin");
+		int pSiteMaxReadLength = p.getIntArg("-pmax");
+		int pvalInterpolationMinSize = p.getIntArg("-pi");
+		int pvalGridPointsPerDoubling = p.getIntArg("-pg");
 		
-		TranslationalEfficiencyFromBam te = new TranslationalEfficiencyFromBam(ribosomeBam, controlBam, geneAnnotationBed, chrSizes, ribosomeGenomeTotal, controlGenomeTotal, ribosomeExonTotal, controlExonTotal, strandSpecific, experimentId);
+		RibosomeCounting ribosomeCounting = RibosomeCounting.OVERLAP;
+		if(pSiteOffsetTable != null || estimatePSiteOffsets) {
+			ribosomeCounting = RibosomeCounting.pSite(pSiteOffsetTable, geneBed, pSiteMinReadLength, pSiteMaxReadLength);
+		} else if(footprintCoverage) {
+			ribosomeCounting = RibosomeCounting.FIVE_PRIME_END;
+		}
+		
+		TranslationalEfficiencyFromBam te = new TranslationalEfficiencyFromBam(ribosomeBam, controlBam, geneAnnotationBed, chrSizes, ribosomeGenomeTotal, controlGenomeTotal, ribosomeExonTotal, controlExonTotal, strandSpecific, experimentId, numThreads, ribosomeCounting);
+		te.setBatchCounting(batchCounting);
+		if(countCacheDir != null) te.setCountCache(countCacheDir);
+		if(pvalInterpolationMinSize > 0) te.setScanPvalInterpolation(pvalInterpolationMinSize, pvalGridPointsPerDoubling);
 		
 		if(outputBed != null) te.writeCdsTEsToBed(geneBed, outputBed);
 		
 		if(outputTable != null) te.writeCdsTEsToTable(geneBed, outputTable);
 		
+		te.closeCountCache();
+		
 		logger.info("");
 		logger.info("All done.");
 		